@@ -1,12 +1,22 @@
 package ppl.server.base;
 
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.core.types.Expiration;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class Redis {
     private static final RedisScript<Boolean> DECR_UP_BOTTOM_SCRIPT = RedisScript.of(
@@ -135,4 +145,179 @@ public class Redis {
         return res != null && res;
     }
 
+    /**
+     * Starts a batch of operations sent in one pipeline. Each operation returns a
+     * {@link Result} that can be read once {@link Batch#execute()} returned. The
+     * operations run in the order they were added, so operations on the same key see
+     * each other the same way consecutive calls of the single key methods do.
+     * @return a new batch
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    public final class Batch {
+
+        private final List<Consumer<StringRedisConnection>> commands = new ArrayList<>();
+
+        private final List<Result<?>> results = new ArrayList<>();
+
+        private boolean executed;
+
+        private Batch() {
+        }
+
+        public Result<String> get(String key) {
+            return add(c -> c.get(key), Batch::toStringValue);
+        }
+
+        public Result<Boolean> delete(String key) {
+            return add(c -> c.del(key), (r) -> r != null && ((Long) r) > 0);
+        }
+
+        public Result<Void> set(String key, String value, long timeout, TimeUnit unit) {
+            return add(c -> c.set(key, value, Expiration.from(timeout, unit), RedisStringCommands.SetOption.upsert()),
+                    (r) -> null);
+        }
+
+        public Result<Void> setIfAbsent(String key, String value, long timeout, TimeUnit unit) {
+            return setIfAbsent(key, value, timeout, unit, false);
+        }
+
+        public Result<Void> setIfAbsent(String key, String value, long timeout, TimeUnit unit, boolean refreshExpire) {
+            if (refreshExpire) {
+                long ttl = unit.toSeconds(timeout);
+                return add(c -> c.eval(SET_IF_ABSENT_AND_EXPIRE_SCRIPT.getScriptAsString(), ReturnType.STATUS, 1,
+                        key, value, ttl + ""), (r) -> null);
+            }
+            return add(c -> c.set(key, value, Expiration.from(timeout, unit), RedisStringCommands.SetOption.ifAbsent()),
+                    (r) -> null);
+        }
+
+        public Result<String> getAndDelete(String key) {
+            return add(c -> c.eval(GET_AND_DELETE_SCRIPT.getScriptAsString(), ReturnType.VALUE, 1, key),
+                    Batch::toStringValue);
+        }
+
+        public Result<Boolean> decrementOverBottom(String key, long bottom) {
+            return decrementOverBottom(key, bottom, -1, null);
+        }
+
+        public Result<Boolean> decrementOverBottom(String key, long bottom, long timeout, TimeUnit unit) {
+            return addCounter(DECR_UP_BOTTOM_SCRIPT, key, bottom, timeout, unit);
+        }
+
+        public Result<Boolean> incrementUnderTop(String key, long top) {
+            return incrementUnderTop(key, top, -1, null);
+        }
+
+        public Result<Boolean> incrementUnderTop(String key, long top, long timeout, TimeUnit unit) {
+            return addCounter(INCR_UNDER_TOP_SCRIPT, key, top, timeout, unit);
+        }
+
+        public int size() {
+            return this.commands.size();
+        }
+
+        /**
+         * Sends all the operations of the batch in one pipeline. An operation that failed
+         * does not fail the others, its {@link Result#get()} throws the error instead.
+         */
+        public void execute() {
+            if (this.executed) {
+                throw new IllegalStateException("Batch already executed.");
+            }
+            this.executed = true;
+            if (this.commands.isEmpty()) {
+                return;
+            }
+            List<Object> raw;
+            try {
+                // EVAL rather than EVALSHA, a pipelined EVALSHA cannot fall back on NOSCRIPT
+                raw = redisTemplate.executePipelined((RedisCallback<Object>) (connection) -> {
+                    StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                    for (Consumer<StringRedisConnection> command : this.commands) {
+                        command.accept(stringConnection);
+                    }
+                    return null;
+                });
+            } catch (RedisPipelineException e) {
+                raw = e.getPipelineResult();
+            }
+            for (int i = 0; i < this.results.size(); i++) {
+                this.results.get(i).complete(i < raw.size() ? raw.get(i)
+                        : new RedisSystemException("No reply for batched operation " + i + ".", null));
+            }
+        }
+
+        private Result<Boolean> addCounter(RedisScript<Boolean> script, String key, long limit, long timeout, TimeUnit unit) {
+            List<String> keysAndArgs = new ArrayList<>();
+            keysAndArgs.add(key);
+            keysAndArgs.add(limit + "");
+            if (timeout > 0) {
+                keysAndArgs.add(unit.toSeconds(timeout) + "");
+            }
+            String[] params = keysAndArgs.toArray(new String[0]);
+            return add(c -> c.eval(script.getScriptAsString(), ReturnType.BOOLEAN, 1, params),
+                    (r) -> Boolean.TRUE.equals(r));
+        }
+
+        private <T> Result<T> add(Consumer<StringRedisConnection> command, Function<Object, T> converter) {
+            if (this.executed) {
+                throw new IllegalStateException("Batch already executed.");
+            }
+            Result<T> result = new Result<>(converter);
+            this.commands.add(command);
+            this.results.add(result);
+            return result;
+        }
+
+        private static String toStringValue(Object raw) {
+            return (raw instanceof byte[]) ? new String((byte[]) raw, StandardCharsets.UTF_8) : (String) raw;
+        }
+
+    }
+
+    public static final class Result<T> {
+
+        private final Function<Object, T> converter;
+
+        private boolean completed;
+
+        private T value;
+
+        private RuntimeException error;
+
+        private Result(Function<Object, T> converter) {
+            this.converter = converter;
+        }
+
+        private void complete(Object raw) {
+            this.completed = true;
+            if (raw instanceof RuntimeException) {
+                this.error = (RuntimeException) raw;
+            } else if (raw instanceof Throwable) {
+                this.error = new RedisSystemException(((Throwable) raw).getMessage(), (Throwable) raw);
+            } else {
+                this.value = this.converter.apply(raw);
+            }
+        }
+
+        /**
+         * Returns the result of the operation, as the single key method would.
+         * @return the result
+         * @throws IllegalStateException if the batch was not executed yet
+         */
+        public T get() {
+            if (!this.completed) {
+                throw new IllegalStateException("Batch not executed yet.");
+            }
+            if (this.error != null) {
+                throw this.error;
+            }
+            return this.value;
+        }
+
+    }
+
 }
@@ -0,0 +1,67 @@
+package ppl.server.base.aspect;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import ppl.server.base.ratelimit.RateLimit;
+import ppl.server.base.ratelimit.RateLimiter;
+
+import javax.servlet.http.HttpServletRequest;
+import java.security.Principal;
+
+/**
+ * Enforces {@link RateLimit} on the annotated methods, ahead of the other aspects.
+ */
+@Aspect
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class RateLimitAspect {
+    private final RateLimiter rateLimiter;
+
+    public RateLimitAspect(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Around("@annotation(rateLimit)")
+    public Object limit(ProceedingJoinPoint pjp, RateLimit rateLimit) throws Throwable {
+        rateLimiter.acquire(toKey(pjp, rateLimit), rateLimit.algorithm(),
+                rateLimit.limit(), rateLimit.period(), rateLimit.unit());
+        return pjp.proceed();
+    }
+
+    private static String toKey(ProceedingJoinPoint pjp, RateLimit rateLimit) {
+        String name = rateLimit.value();
+        if (name.isEmpty()) {
+            MethodSignature signature = (MethodSignature) pjp.getSignature();
+            name = signature.getDeclaringType().getName() + "." + signature.getName();
+        }
+        if (rateLimit.scope() == RateLimit.Scope.GLOBAL) {
+            return name;
+        }
+
+        HttpServletRequest request = currentRequest();
+        if (request == null) {
+            return name;
+        }
+        if (rateLimit.scope() == RateLimit.Scope.PRINCIPAL) {
+            Principal principal = request.getUserPrincipal();
+            if (principal != null) {
+                return name + ":user:" + principal.getName();
+            }
+        }
+        return name + ":ip:" + request.getRemoteAddr();
+    }
+
+    private static HttpServletRequest currentRequest() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes instanceof ServletRequestAttributes) {
+            return ((ServletRequestAttributes) attributes).getRequest();
+        }
+        return null;
+    }
+}
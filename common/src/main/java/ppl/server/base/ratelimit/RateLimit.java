@@ -0,0 +1,54 @@
+package ppl.server.base.ratelimit;
+
+import java.lang.annotation.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of calls of a controller method, such as the methods of a
+ * {@link ppl.server.base.webmvc.response.jackson.JController}, enforced by
+ * {@link ppl.server.base.aspect.RateLimitAspect}. A rejected call throws
+ * {@link RateLimitExceededException}.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface RateLimit {
+
+    /**
+     * The name of the limit, the class and method name by default. Methods sharing a
+     * name share a limit.
+     */
+    String value() default "";
+
+    /**
+     * The number of calls per period.
+     */
+    long limit();
+
+    long period() default 1;
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+
+    RateLimiter.Algorithm algorithm() default RateLimiter.Algorithm.TOKEN_BUCKET;
+
+    Scope scope() default Scope.GLOBAL;
+
+    enum Scope {
+
+        /**
+         * One limit for all callers.
+         */
+        GLOBAL,
+
+        /**
+         * A limit per client address.
+         */
+        IP,
+
+        /**
+         * A limit per authenticated user, per client address for anonymous callers.
+         */
+        PRINCIPAL
+
+    }
+}
@@ -0,0 +1,34 @@
+package ppl.server.base.ratelimit;
+
+import ppl.server.base.webmvc.response.r.MessageParameter;
+
+/**
+ * Thrown when a call exceeds its rate limit.
+ */
+public class RateLimitExceededException extends RuntimeException implements MessageParameter {
+
+    private final String key;
+    private final long retryAfterMillis;
+
+    public RateLimitExceededException(String key, long retryAfterMillis) {
+        super("Rate limit of '" + key + "' exceeded, retry after " + retryAfterMillis + "ms.");
+        this.key = key;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the number of milliseconds until the call could pass
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    @Override
+    public Object[] params() {
+        return new Object[]{retryAfterMillis};
+    }
+}
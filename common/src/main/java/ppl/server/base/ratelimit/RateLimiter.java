@@ -0,0 +1,231 @@
+package ppl.server.base.ratelimit;
+
+import org.springframework.data.redis.core.script.RedisScript;
+import ppl.server.base.Redis;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * A rate limiter shared by all the nodes through Redis. Each check is a single script
+ * call, which reads the clock of Redis, so the nodes need not agree on the time.
+ * </p>
+ * <p>
+ * A rejected check tells how long until the call could pass. Until then further checks
+ * of the same key are rejected locally, without a round trip, as no limit can admit
+ * them earlier. At most {@link #DEFAULT_MAX_LOCAL_KEYS} keys are kept locally by default.
+ * </p>
+ */
+public class RateLimiter {
+
+    public static final int DEFAULT_MAX_LOCAL_KEYS = 10000;
+
+    private static final String KEY_PREFIX = "rate-limit:";
+
+    public enum Algorithm {
+
+        /**
+         * Refills the limit continuously over the period, a full bucket admits a burst of
+         * up to limit calls.
+         */
+        TOKEN_BUCKET,
+
+        /**
+         * Admits up to limit calls in any period, counting the calls of the previous
+         * period weighted by how much of it still lies in the sliding window.
+         */
+        SLIDING_WINDOW
+
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> TOKEN_BUCKET_SCRIPT = RedisScript.of(
+            "redis.replicate_commands()\n" +
+                    "local k = KEYS[1]\n" +
+                    "local limit = tonumber(ARGV[1])\n" +
+                    "local period = tonumber(ARGV[2])\n" +
+                    "local permits = tonumber(ARGV[3])\n" +
+                    "local t = redis.call('time')\n" +
+                    "local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)\n" +
+                    "local state = redis.call('hmget', k, 'tokens', 'ts')\n" +
+                    "local tokens = tonumber(state[1]) or limit\n" +
+                    "local ts = tonumber(state[2]) or now\n" +
+                    "tokens = math.min(limit, tokens + math.max(0, now - ts) * limit / period)\n" +
+                    "if tokens < permits then\n" +
+                    "  return { 0, math.ceil((permits - tokens) * period / limit) }\n" +
+                    "end\n" +
+                    "redis.call('hmset', k, 'tokens', tokens - permits, 'ts', now)\n" +
+                    "redis.call('pexpire', k, period)\n" +
+                    "return { 1, 0 }", List.class);
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> SLIDING_WINDOW_SCRIPT = RedisScript.of(
+            "redis.replicate_commands()\n" +
+                    "local k = KEYS[1]\n" +
+                    "local limit = tonumber(ARGV[1])\n" +
+                    "local period = tonumber(ARGV[2])\n" +
+                    "local permits = tonumber(ARGV[3])\n" +
+                    "local t = redis.call('time')\n" +
+                    "local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)\n" +
+                    "local window = math.floor(now / period)\n" +
+                    "local elapsed = now - window * period\n" +
+                    "local state = redis.call('hmget', k, 'window', 'cur', 'prev')\n" +
+                    "local w = tonumber(state[1])\n" +
+                    "local cur = 0\n" +
+                    "local prev = 0\n" +
+                    "if w == window then\n" +
+                    "  cur = tonumber(state[2]) or 0\n" +
+                    "  prev = tonumber(state[3]) or 0\n" +
+                    "elseif w == window - 1 then\n" +
+                    "  prev = tonumber(state[2]) or 0\n" +
+                    "end\n" +
+                    "local excess = prev * (period - elapsed) / period + cur + permits - limit\n" +
+                    "if excess > 0 then\n" +
+                    "  local wait = period - elapsed\n" +
+                    "  if cur + permits <= limit then\n" +
+                    "    wait = math.min(wait, math.ceil(excess * period / prev))\n" +
+                    "  end\n" +
+                    "  return { 0, math.max(1, wait) }\n" +
+                    "end\n" +
+                    "redis.call('hmset', k, 'window', window, 'cur', cur + permits, 'prev', prev)\n" +
+                    "redis.call('pexpire', k, 2 * period)\n" +
+                    "return { 1, 0 }", List.class);
+
+    private final Redis redis;
+
+    private final Map<String, Long> deniedUntil = new ConcurrentHashMap<>();
+
+    private int maxLocalKeys = DEFAULT_MAX_LOCAL_KEYS;
+
+    private final LongAdder localRejectedCount = new LongAdder();
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public RateLimiter(Redis redis) {
+        this.redis = redis;
+    }
+
+    /**
+     * Sets the maximum number of keys whose rejections are kept to reject further calls
+     * locally. {@code 0} sends every check to Redis.
+     * @param maxLocalKeys the maximum number of keys kept locally
+     */
+    public void setMaxLocalKeys(int maxLocalKeys) {
+        if (maxLocalKeys < 0) {
+            throw new IllegalArgumentException("maxLocalKeys must not be negative");
+        }
+        this.maxLocalKeys = maxLocalKeys;
+    }
+
+    public boolean tryAcquire(String key, Algorithm algorithm, long limit, long period, TimeUnit unit) {
+        return check(key, algorithm, limit, period, unit, 1) == 0;
+    }
+
+    /**
+     * Takes permits from the limit of a key.
+     * @param key the key the limit applies to
+     * @param algorithm the algorithm of the limit
+     * @param limit the number of permits per period
+     * @param period the period
+     * @param unit the unit of the period
+     * @param permits the number of permits to take, at most the limit
+     * @return whether the permits were taken
+     */
+    public boolean tryAcquire(String key, Algorithm algorithm, long limit, long period, TimeUnit unit, long permits) {
+        return check(key, algorithm, limit, period, unit, permits) == 0;
+    }
+
+    /**
+     * Takes a permit from the limit of a key, as {@link #tryAcquire(String, Algorithm, long, long, TimeUnit)}.
+     * @throws RateLimitExceededException if the limit is exceeded
+     */
+    public void acquire(String key, Algorithm algorithm, long limit, long period, TimeUnit unit) {
+        long wait = check(key, algorithm, limit, period, unit, 1);
+        if (wait > 0) {
+            throw new RateLimitExceededException(key, wait);
+        }
+    }
+
+    /**
+     * @return the number of milliseconds until the permits could be taken, {@code 0} if
+     * they were taken
+     */
+    private long check(String key, Algorithm algorithm, long limit, long period, TimeUnit unit, long permits) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        if (permits <= 0 || permits > limit) {
+            throw new IllegalArgumentException("permits must be positive and not more than limit");
+        }
+        long periodInMillis = unit.toMillis(period);
+        if (periodInMillis <= 0) {
+            throw new IllegalArgumentException("period must be at least one millisecond");
+        }
+
+        String redisKey = KEY_PREFIX + algorithm.name().toLowerCase() + ":" + key;
+        Long until = deniedUntil.get(redisKey);
+        if (until != null) {
+            long wait = TimeUnit.NANOSECONDS.toMillis(until - System.nanoTime());
+            if (wait > 0) {
+                localRejectedCount.increment();
+                rejectedCount.increment();
+                return wait;
+            }
+            deniedUntil.remove(redisKey, until);
+        }
+
+        RedisScript<?> script = algorithm == Algorithm.TOKEN_BUCKET ? TOKEN_BUCKET_SCRIPT : SLIDING_WINDOW_SCRIPT;
+        List<?> res = (List<?>) redis.execute(script, Collections.singletonList(redisKey),
+                limit + "", periodInMillis + "", permits + "");
+        if (res == null || res.size() < 2) {
+            throw new IllegalStateException("Unexpected reply of rate limit script: " + res + ".");
+        }
+        if (((Number) res.get(0)).longValue() == 1) {
+            return 0;
+        }
+        long wait = Math.max(1, ((Number) res.get(1)).longValue());
+        rejectedCount.increment();
+        if (permits == 1) {
+            // the wait of a larger request is longer than a single permit needs
+            denyLocally(redisKey, wait);
+        }
+        return wait;
+    }
+
+    private void denyLocally(String redisKey, long wait) {
+        if (deniedUntil.size() >= maxLocalKeys) {
+            long now = System.nanoTime();
+            Iterator<Long> it = deniedUntil.values().iterator();
+            while (it.hasNext()) {
+                if (it.next() - now <= 0) {
+                    it.remove();
+                }
+            }
+            if (deniedUntil.size() >= maxLocalKeys) {
+                return;
+            }
+        }
+        deniedUntil.put(redisKey, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait));
+    }
+
+    /**
+     * @return the number of rejected checks, including the ones rejected locally
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * @return the number of checks rejected without a round trip to Redis
+     */
+    public long getLocalRejectedCount() {
+        return localRejectedCount.sum();
+    }
+
+}
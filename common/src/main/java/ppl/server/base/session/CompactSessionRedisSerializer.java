@@ -0,0 +1,484 @@
+package ppl.server.base.session;
+
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * A compact {@link RedisSerializer} for session attributes. Every value starts with a two
+ * byte header, a magic byte followed by the format version, so the format can evolve
+ * while values written by older versions stay readable. The header is followed by a
+ * tagged value.
+ * </p>
+ * <p>
+ * {@code String}, {@code Long}, {@code Integer}, {@code Boolean}, {@code Double},
+ * {@code Instant}, {@code byte[]} and the common {@code ArrayList}, {@code HashSet},
+ * {@code LinkedHashSet}, {@code HashMap} and {@code LinkedHashMap} collections are
+ * written with dedicated tags. Application types can be registered with a small integer
+ * id and a {@link Codec}, so only the id is stored instead of a class descriptor. Any
+ * other value falls back to JDK serialization.
+ * </p>
+ * <p>
+ * Values written by {@link JdkSerializationRedisSerializer} are recognized by their
+ * stream header and still deserialized, so the serializer can replace the JDK one on a
+ * populated Redis.
+ * </p>
+ * <p>
+ * To use it, register it as the {@code springSessionDefaultRedisSerializer} bean.
+ * </p>
+ */
+public class CompactSessionRedisSerializer implements RedisSerializer<Object> {
+
+    static final byte MAGIC = (byte) 0xC5;
+
+    static final byte VERSION = 1;
+
+    private static final byte JDK_STREAM_MAGIC_0 = (byte) 0xAC;
+
+    private static final byte JDK_STREAM_MAGIC_1 = (byte) 0xED;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_LONG = 2;
+    private static final int TAG_INTEGER = 3;
+    private static final int TAG_TRUE = 4;
+    private static final int TAG_FALSE = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_INSTANT = 7;
+    private static final int TAG_BYTES = 8;
+    private static final int TAG_ARRAY_LIST = 9;
+    private static final int TAG_HASH_SET = 10;
+    private static final int TAG_LINKED_HASH_SET = 11;
+    private static final int TAG_HASH_MAP = 12;
+    private static final int TAG_LINKED_HASH_MAP = 13;
+    private static final int TAG_JDK = 14;
+
+    /**
+     * Registered types are written as {@code TAG_REGISTERED + id}.
+     */
+    private static final int TAG_REGISTERED = 64;
+
+    private final JdkSerializationRedisSerializer jdkSerializer;
+
+    private final Map<Class<?>, Registration<?>> registrationsByType = new ConcurrentHashMap<>();
+
+    private final Map<Integer, Registration<?>> registrationsById = new ConcurrentHashMap<>();
+
+    public CompactSessionRedisSerializer() {
+        this(new JdkSerializationRedisSerializer());
+    }
+
+    public CompactSessionRedisSerializer(ClassLoader classLoader) {
+        this(new JdkSerializationRedisSerializer(classLoader));
+    }
+
+    private CompactSessionRedisSerializer(JdkSerializationRedisSerializer jdkSerializer) {
+        this.jdkSerializer = jdkSerializer;
+    }
+
+    /**
+     * Registers an application type. The id is stored in place of the class name, so it
+     * must stay the same for as long as values written with it live in Redis.
+     * @param id a non-negative id, unique within this serializer
+     * @param type the exact class of the values
+     * @param codec writes and reads the values
+     * @param <T> the type of the values
+     * @return this serializer
+     */
+    public synchronized <T> CompactSessionRedisSerializer register(int id, Class<T> type, Codec<T> codec) {
+        Objects.requireNonNull(type, "type must not be null");
+        Objects.requireNonNull(codec, "codec must not be null");
+        if (id < 0) {
+            throw new IllegalArgumentException("id must not be negative");
+        }
+        if (this.registrationsById.containsKey(id)) {
+            throw new IllegalArgumentException("Duplicate id: '" + id + "'.");
+        }
+        if (this.registrationsByType.containsKey(type)) {
+            throw new IllegalArgumentException("Duplicate type: '" + type.getName() + "'.");
+        }
+        Registration<T> registration = new Registration<>(id, codec);
+        this.registrationsById.put(id, registration);
+        this.registrationsByType.put(type, registration);
+        return this;
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        if (value == null) {
+            return new byte[0];
+        }
+        Output out = new Output(64);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        writeValue(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        if (bytes.length >= 2 && bytes[0] == JDK_STREAM_MAGIC_0 && bytes[1] == JDK_STREAM_MAGIC_1) {
+            return this.jdkSerializer.deserialize(bytes);
+        }
+        if (bytes.length < 2 || bytes[0] != MAGIC) {
+            throw new SerializationException("Unknown serialized format.");
+        }
+        if (bytes[1] > VERSION) {
+            throw new SerializationException("Unsupported serialized format version: '" + bytes[1] + "'.");
+        }
+        try {
+            return readValue(new Input(bytes, 2));
+        }
+        catch (IndexOutOfBoundsException ex) {
+            throw new SerializationException("Truncated serialized value.", ex);
+        }
+    }
+
+    private void writeValue(Output out, Object value) {
+        if (value == null) {
+            out.writeVarInt(TAG_NULL);
+            return;
+        }
+        Class<?> type = value.getClass();
+        if (type == String.class) {
+            out.writeVarInt(TAG_STRING);
+            out.writeString((String) value);
+        }
+        else if (type == Long.class) {
+            out.writeVarInt(TAG_LONG);
+            out.writeVarLong(zigZag((Long) value));
+        }
+        else if (type == Integer.class) {
+            out.writeVarInt(TAG_INTEGER);
+            out.writeVarLong(zigZag((Integer) value));
+        }
+        else if (type == Boolean.class) {
+            out.writeVarInt((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        }
+        else if (type == Double.class) {
+            out.writeVarInt(TAG_DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        }
+        else if (type == Instant.class) {
+            Instant instant = (Instant) value;
+            out.writeVarInt(TAG_INSTANT);
+            out.writeVarLong(zigZag(instant.getEpochSecond()));
+            out.writeVarInt(instant.getNano());
+        }
+        else if (type == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            out.writeVarInt(TAG_BYTES);
+            out.writeVarInt(bytes.length);
+            out.writeBytes(bytes);
+        }
+        else if (type == ArrayList.class) {
+            writeCollection(out, TAG_ARRAY_LIST, (Collection<?>) value);
+        }
+        else if (type == HashSet.class) {
+            writeCollection(out, TAG_HASH_SET, (Collection<?>) value);
+        }
+        else if (type == LinkedHashSet.class) {
+            writeCollection(out, TAG_LINKED_HASH_SET, (Collection<?>) value);
+        }
+        else if (type == HashMap.class) {
+            writeMap(out, TAG_HASH_MAP, (Map<?, ?>) value);
+        }
+        else if (type == LinkedHashMap.class) {
+            writeMap(out, TAG_LINKED_HASH_MAP, (Map<?, ?>) value);
+        }
+        else {
+            writeOther(out, type, value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void writeOther(Output out, Class<?> type, Object value) {
+        Registration<T> registration = (Registration<T>) this.registrationsByType.get(type);
+        if (registration != null) {
+            out.writeVarInt(TAG_REGISTERED + registration.id);
+            int lengthPosition = out.reserveInt();
+            registration.codec.write((T) value, out);
+            out.patchInt(lengthPosition, out.position() - lengthPosition - 4);
+            return;
+        }
+        byte[] bytes = this.jdkSerializer.serialize(value);
+        out.writeVarInt(TAG_JDK);
+        out.writeVarInt(bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private void writeCollection(Output out, int tag, Collection<?> values) {
+        out.writeVarInt(tag);
+        out.writeVarInt(values.size());
+        for (Object value : values) {
+            writeValue(out, value);
+        }
+    }
+
+    private void writeMap(Output out, int tag, Map<?, ?> values) {
+        out.writeVarInt(tag);
+        out.writeVarInt(values.size());
+        for (Map.Entry<?, ?> entry : values.entrySet()) {
+            writeValue(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private Object readValue(Input in) {
+        int tag = in.readVarInt();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return in.readString();
+            case TAG_LONG:
+                return unZigZag(in.readVarLong());
+            case TAG_INTEGER:
+                return (int) unZigZag(in.readVarLong());
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case TAG_INSTANT:
+                return Instant.ofEpochSecond(unZigZag(in.readVarLong()), in.readVarInt());
+            case TAG_BYTES:
+                return in.readBytes(in.readVarInt());
+            case TAG_ARRAY_LIST:
+                return readCollection(in, new ArrayList<>());
+            case TAG_HASH_SET:
+                return readCollection(in, new HashSet<>());
+            case TAG_LINKED_HASH_SET:
+                return readCollection(in, new LinkedHashSet<>());
+            case TAG_HASH_MAP:
+                return readMap(in, new HashMap<>());
+            case TAG_LINKED_HASH_MAP:
+                return readMap(in, new LinkedHashMap<>());
+            case TAG_JDK:
+                return this.jdkSerializer.deserialize(in.readBytes(in.readVarInt()));
+            default:
+                return readOther(in, tag);
+        }
+    }
+
+    private Object readOther(Input in, int tag) {
+        if (tag < TAG_REGISTERED) {
+            throw new SerializationException("Unknown tag: '" + tag + "'.");
+        }
+        Registration<?> registration = this.registrationsById.get(tag - TAG_REGISTERED);
+        if (registration == null) {
+            throw new SerializationException("Unregistered type id: '" + (tag - TAG_REGISTERED) + "'.");
+        }
+        int length = in.readInt();
+        return registration.codec.read(new Input(in.readBytes(length), 0));
+    }
+
+    private Collection<Object> readCollection(Input in, Collection<Object> values) {
+        int size = in.readVarInt();
+        for (int i = 0; i < size; i++) {
+            values.add(readValue(in));
+        }
+        return values;
+    }
+
+    private Map<Object, Object> readMap(Input in, Map<Object, Object> values) {
+        int size = in.readVarInt();
+        for (int i = 0; i < size; i++) {
+            Object key = readValue(in);
+            values.put(key, readValue(in));
+        }
+        return values;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes and reads the values of a registered type.
+     * @param <T> the type of the values
+     */
+    public interface Codec<T> {
+
+        void write(T value, Output out);
+
+        T read(Input in);
+
+    }
+
+    private static final class Registration<T> {
+
+        private final int id;
+
+        private final Codec<T> codec;
+
+        Registration(int id, Codec<T> codec) {
+            this.id = id;
+            this.codec = codec;
+        }
+
+    }
+
+    public static final class Output {
+
+        private byte[] buffer;
+
+        private int position;
+
+        Output(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        public void writeByte(int value) {
+            ensureCapacity(1);
+            this.buffer[this.position++] = (byte) value;
+        }
+
+        public void writeBytes(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+            this.position += bytes.length;
+        }
+
+        public void writeInt(int value) {
+            ensureCapacity(4);
+            this.buffer[this.position++] = (byte) (value >>> 24);
+            this.buffer[this.position++] = (byte) (value >>> 16);
+            this.buffer[this.position++] = (byte) (value >>> 8);
+            this.buffer[this.position++] = (byte) value;
+        }
+
+        public void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        public void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        public void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                this.buffer[this.position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.buffer[this.position++] = (byte) value;
+        }
+
+        public void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            writeBytes(bytes);
+        }
+
+        int position() {
+            return this.position;
+        }
+
+        int reserveInt() {
+            int reserved = this.position;
+            writeInt(0);
+            return reserved;
+        }
+
+        void patchInt(int at, int value) {
+            this.buffer[at] = (byte) (value >>> 24);
+            this.buffer[at + 1] = (byte) (value >>> 16);
+            this.buffer[at + 2] = (byte) (value >>> 8);
+            this.buffer[at + 3] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(this.buffer, this.position);
+        }
+
+        private void ensureCapacity(int length) {
+            if (this.position + length > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length << 1, this.position + length));
+            }
+        }
+
+    }
+
+    public static final class Input {
+
+        private final byte[] buffer;
+
+        private int position;
+
+        Input(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        public int readByte() {
+            checkAvailable(1);
+            return this.buffer[this.position++];
+        }
+
+        public byte[] readBytes(int length) {
+            checkAvailable(length);
+            byte[] bytes = Arrays.copyOfRange(this.buffer, this.position, this.position + length);
+            this.position += length;
+            return bytes;
+        }
+
+        public int readInt() {
+            checkAvailable(4);
+            return ((this.buffer[this.position++] & 0xFF) << 24) | ((this.buffer[this.position++] & 0xFF) << 16)
+                    | ((this.buffer[this.position++] & 0xFF) << 8) | (this.buffer[this.position++] & 0xFF);
+        }
+
+        public long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        public int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        public long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                checkAvailable(1);
+                byte b = this.buffer[this.position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new SerializationException("Malformed variable length number.");
+        }
+
+        public String readString() {
+            int length = readVarInt();
+            checkAvailable(length);
+            String value = new String(this.buffer, this.position, length, StandardCharsets.UTF_8);
+            this.position += length;
+            return value;
+        }
+
+        private void checkAvailable(int length) {
+            if (length < 0 || this.position + length > this.buffer.length) {
+                throw new IndexOutOfBoundsException("Read past end of value.");
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,257 @@
+package ppl.server.base.session;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * A {@link RedisSerializer} decorator that deflates values whose serialized form reaches
+ * a size threshold. Compressed values start with a header, three magic bytes followed by
+ * the format version and the uncompressed length, and values below the threshold or that
+ * do not shrink are stored as the delegate wrote them.
+ * </p>
+ * <p>
+ * The magic bytes differ from the start of the JDK serialization stream and of
+ * {@link CompactSessionRedisSerializer}, so values written before compression was
+ * enabled are handed to the delegate unchanged. A value that starts with the header
+ * by chance but does not inflate is handed to the delegate as well.
+ * </p>
+ */
+public class CompressingRedisSerializer implements RedisSerializer<Object> {
+
+    static final byte[] MAGIC = { (byte) 0xC7, 'Z', 'S' };
+
+    static final byte VERSION = 1;
+
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private static final int HEADER_LENGTH = MAGIC.length + 1;
+
+    /**
+     * Shorter values never shrink enough to pay for the header.
+     */
+    private static final int MIN_COMPRESSIBLE_LENGTH = 16;
+
+    private final RedisSerializer<Object> delegate;
+
+    private int threshold = DEFAULT_THRESHOLD;
+
+    private int level = Deflater.BEST_SPEED;
+
+    private final LongAdder compressedCount = new LongAdder();
+
+    private final LongAdder uncompressedBytes = new LongAdder();
+
+    private final LongAdder compressedBytes = new LongAdder();
+
+    private final LongAdder compressNanos = new LongAdder();
+
+    private final LongAdder decompressedCount = new LongAdder();
+
+    private final LongAdder decompressNanos = new LongAdder();
+
+    public CompressingRedisSerializer(RedisSerializer<Object> delegate) {
+        this.delegate = Objects.requireNonNull(delegate, "delegate cannot be null");
+    }
+
+    /**
+     * Sets the serialized size, in bytes, from which values are compressed. Default is
+     * {@link #DEFAULT_THRESHOLD}.
+     * @param threshold the size threshold in bytes
+     */
+    public void setThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * Sets the deflate level, from {@link Deflater#BEST_SPEED} to
+     * {@link Deflater#BEST_COMPRESSION}. Default is {@link Deflater#BEST_SPEED}.
+     * @param level the compression level
+     */
+    public void setLevel(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between 1 and 9");
+        }
+        this.level = level;
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        byte[] bytes = this.delegate.serialize(value);
+        if (bytes == null || bytes.length < Math.max(this.threshold, MIN_COMPRESSIBLE_LENGTH)) {
+            return bytes;
+        }
+        long start = System.nanoTime();
+        byte[] compressed = compress(bytes);
+        this.compressNanos.add(System.nanoTime() - start);
+        if (compressed == null) {
+            return bytes;
+        }
+        this.compressedCount.increment();
+        this.uncompressedBytes.add(bytes.length);
+        this.compressedBytes.add(compressed.length);
+        return compressed;
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (!hasHeader(bytes)) {
+            return this.delegate.deserialize(bytes);
+        }
+        long start = System.nanoTime();
+        byte[] decompressed;
+        try {
+            decompressed = decompress(bytes);
+        }
+        catch (SerializationException ex) {
+            // not compressed by us, the delegate's own format only looks like the header
+            return this.delegate.deserialize(bytes);
+        }
+        finally {
+            this.decompressNanos.add(System.nanoTime() - start);
+        }
+        this.decompressedCount.increment();
+        return this.delegate.deserialize(decompressed);
+    }
+
+    private static boolean hasHeader(byte[] bytes) {
+        if (bytes == null || bytes.length <= HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the compressed value with its header, or {@code null} if it would not be
+     * smaller than the original. The deflater holds native memory, it is ended before
+     * returning rather than left to the garbage collector.
+     */
+    private byte[] compress(byte[] bytes) {
+        Deflater deflater = new Deflater(this.level, true);
+        byte[] out = new byte[bytes.length];
+        System.arraycopy(MAGIC, 0, out, 0, MAGIC.length);
+        out[MAGIC.length] = VERSION;
+        int position = writeVarInt(out, HEADER_LENGTH, bytes.length);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (position == out.length) {
+                    return null;
+                }
+                position += deflater.deflate(out, position, out.length - position);
+            }
+            return Arrays.copyOf(out, position);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] decompress(byte[] bytes) {
+        if (bytes[MAGIC.length] != VERSION) {
+            throw new SerializationException("Unsupported compressed format version: '" + bytes[MAGIC.length] + "'.");
+        }
+        int length = 0;
+        int position = HEADER_LENGTH;
+        for (int shift = 0; ; shift += 7) {
+            if (position == bytes.length || shift > 28) {
+                throw new SerializationException("Malformed compressed header.");
+            }
+            byte b = bytes[position++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        // deflate never expands more than about 1032 times, a larger length is no header of ours
+        if (length < 0 || length > (bytes.length - position) * 1032L) {
+            throw new SerializationException("Malformed compressed header.");
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(bytes, position, bytes.length - position);
+            byte[] out = new byte[length];
+            int inflated = 0;
+            while (inflated < length) {
+                int n = inflater.inflate(out, inflated, length - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != length) {
+                throw new SerializationException("Truncated compressed value.");
+            }
+            return out;
+        }
+        catch (DataFormatException ex) {
+            throw new SerializationException("Corrupt compressed value.", ex);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    private static int writeVarInt(byte[] out, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Returns the number of values stored compressed.
+     * @return the number of compressed values
+     */
+    public long getCompressedCount() {
+        return this.compressedCount.sum();
+    }
+
+    /**
+     * Returns how many bytes compression saved so far, summed over all the values stored
+     * compressed.
+     * @return the saved bytes
+     */
+    public long getBytesSaved() {
+        return this.uncompressedBytes.sum() - this.compressedBytes.sum();
+    }
+
+    /**
+     * Returns the time spent compressing, including values that did not shrink.
+     * @return the compression time in nanoseconds
+     */
+    public long getCompressNanos() {
+        return this.compressNanos.sum();
+    }
+
+    public long getDecompressedCount() {
+        return this.decompressedCount.sum();
+    }
+
+    /**
+     * Returns the time spent decompressing.
+     * @return the decompression time in nanoseconds
+     */
+    public long getDecompressNanos() {
+        return this.decompressNanos.sum();
+    }
+
+}
@@ -2,15 +2,22 @@ package ppl.server.base.session;
 
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.ListableBeanFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationListener;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.EmbeddedValueResolverAware;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.ImportAware;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.annotation.AnnotatedElementUtils;
 import org.springframework.core.annotation.AnnotationAttributes;
 import org.springframework.core.type.AnnotationMetadata;
 import org.springframework.data.redis.connection.RedisConnection;
@@ -21,9 +28,11 @@ import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.listener.ChannelTopic;
 import org.springframework.data.redis.listener.PatternTopic;
 import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
 import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.support.CronExpression;
 import org.springframework.scheduling.annotation.SchedulingConfigurer;
 import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.session.*;
@@ -33,20 +42,38 @@ import org.springframework.session.data.redis.RedisFlushMode;
 import org.springframework.session.data.redis.config.ConfigureNotifyKeyspaceEventsAction;
 import org.springframework.session.data.redis.config.ConfigureRedisAction;
 import org.springframework.session.data.redis.config.annotation.SpringSessionRedisConnectionFactory;
+import org.springframework.session.events.AbstractSessionEvent;
+import org.springframework.session.events.SessionCreatedEvent;
+import org.springframework.session.web.http.SessionEventHttpSessionListenerAdapter;
 import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
 import org.springframework.util.StringValueResolver;
 import ppl.common.utils.string.Strings;
 
+import javax.servlet.http.HttpSessionListener;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 @Configuration(proxyBeanMethods = false)
 public class CustomRedisHttpSessionConfiguration extends SpringHttpSessionConfiguration
-        implements BeanClassLoaderAware, EmbeddedValueResolverAware, ImportAware {
+        implements BeanClassLoaderAware, BeanFactoryAware, EmbeddedValueResolverAware, ImportAware {
 
     static final String DEFAULT_CLEANUP_CRON = "0 * * * * *";
 
+    static final int DEFAULT_LOCAL_CACHE_TIME_TO_LIVE_SECONDS = 60;
+
+    static final int DEFAULT_EVENT_QUEUE_CAPACITY = 10000;
+
+    static final int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD_MILLIS = 500;
+
+    static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_SECONDS = 5;
+
+    static final int DEFAULT_CIRCUIT_BREAKER_MAX_LOCAL_SESSIONS = 10000;
+
     private Integer maxInactiveIntervalInSeconds = MapSession.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS;
 
     private String redisNamespace = CustomSIDRedisIndexedSessionRepository.DEFAULT_NAMESPACE;
@@ -57,6 +84,54 @@ public class CustomRedisHttpSessionConfiguration extends SpringHttpSessionConfig
 
     private String cleanupCron = DEFAULT_CLEANUP_CRON;
 
+    private boolean pipelinedSave;
+
+    private boolean scriptedDelete;
+
+    private boolean sortedPrincipalIndex;
+
+    private int maxSessionsPerPrincipal;
+
+    private int localCacheMaxEntries;
+
+    private long localCacheMaxBytes;
+
+    private int localCacheTimeToLiveInSeconds = DEFAULT_LOCAL_CACHE_TIME_TO_LIVE_SECONDS;
+
+    private SessionExpirationStrategy expirationStrategy = SessionExpirationStrategy.MINUTE_BUCKETS;
+
+    private boolean cleanupCoordinated = true;
+
+    private int eventProcessingThreads;
+
+    private int eventQueueCapacity = DEFAULT_EVENT_QUEUE_CAPACITY;
+
+    private int touchGranularityInSeconds;
+
+    private boolean hashTaggedKeys;
+
+    private int compressionThresholdInBytes = -1;
+
+    private String[] detachedAttributes = {};
+
+    private int writeBehindFlushIntervalInMillis;
+
+    private int writeBehindMaxPending = CustomSIDRedisIndexedSessionRepository.DEFAULT_WRITE_BEHIND_MAX_PENDING;
+
+    private int circuitBreakerFailureThreshold;
+
+    private int circuitBreakerSlowCallThresholdInMillis = DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD_MILLIS;
+
+    private int circuitBreakerOpenDurationInSeconds = DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_SECONDS;
+
+    private int circuitBreakerMaxLocalSessions = DEFAULT_CIRCUIT_BREAKER_MAX_LOCAL_SESSIONS;
+
+    private SessionCreatedEventMode sessionCreatedEventMode = SessionCreatedEventMode.FULL;
+
+    private boolean httpSessionListenersPresent;
+
+    private BeanFactory beanFactory;
+
     private ConfigureRedisAction configureRedisAction = new ConfigureNotifyKeyspaceEventsAction();
 
     private RedisConnectionFactory redisConnectionFactory;
@@ -79,14 +154,15 @@ public class CustomRedisHttpSessionConfiguration extends SpringHttpSessionConfig
 
     @Bean
     public CustomSIDRedisIndexedSessionRepository sessionRepository() {
-        RedisTemplate<Object, Object> redisTemplate = createRedisTemplate();
+        RedisSerializer<Object> defaultSerializer = createDefaultRedisSerializer();
+        RedisTemplate<Object, Object> redisTemplate = createRedisTemplate(defaultSerializer);
         CustomSIDRedisIndexedSessionRepository sessionRepository = new CustomSIDRedisIndexedSessionRepository(redisTemplate);
         sessionRepository.setApplicationEventPublisher(this.applicationEventPublisher);
         if (this.indexResolver != null) {
             sessionRepository.setIndexResolver(this.indexResolver);
         }
-        if (this.defaultRedisSerializer != null) {
-            sessionRepository.setDefaultSerializer(this.defaultRedisSerializer);
+        if (defaultSerializer != null) {
+            sessionRepository.setDefaultSerializer(defaultSerializer);
         }
         sessionRepository.setDefaultMaxInactiveInterval(this.maxInactiveIntervalInSeconds);
         if (Strings.isNotBlank(this.redisNamespace)) {
@@ -94,6 +170,44 @@ public class CustomRedisHttpSessionConfiguration extends SpringHttpSessionConfig
         }
         sessionRepository.setFlushMode(this.flushMode);
         sessionRepository.setSaveMode(this.saveMode);
+        sessionRepository.setPipelinedSave(this.pipelinedSave);
+        sessionRepository.setScriptedDelete(this.scriptedDelete);
+        sessionRepository.setSortedPrincipalIndex(this.sortedPrincipalIndex);
+        sessionRepository.setMaxSessionsPerPrincipal(this.maxSessionsPerPrincipal);
+        sessionRepository.setExpirationStrategy(this.expirationStrategy);
+        sessionRepository.setCleanupCoordinated(this.cleanupCoordinated);
+        Duration cleanupInterval = getCleanupInterval();
+        if (cleanupInterval != null) {
+            sessionRepository.setCleanupLeaseTime(cleanupInterval);
+        }
+        sessionRepository.setAsyncEventProcessing(this.eventProcessingThreads, this.eventQueueCapacity);
+        sessionRepository.setTouchGranularity(Duration.ofSeconds(this.touchGranularityInSeconds));
+        sessionRepository.setHashTaggedKeys(this.hashTaggedKeys);
+        sessionRepository.setDetachedAttributes(Arrays.asList(this.detachedAttributes));
+        if (this.writeBehindFlushIntervalInMillis > 0) {
+            sessionRepository.setWriteBehind(Duration.ofMillis(this.writeBehindFlushIntervalInMillis),
+                    this.writeBehindMaxPending);
+        }
+        if (this.circuitBreakerFailureThreshold > 0) {
+            sessionRepository.setCircuitBreaker(this.circuitBreakerFailureThreshold,
+                    Duration.ofMillis(this.circuitBreakerSlowCallThresholdInMillis),
+                    Duration.ofSeconds(this.circuitBreakerOpenDurationInSeconds), this.circuitBreakerMaxLocalSessions);
+        }
+        if (this.sessionCreatedEventMode != SessionCreatedEventMode.AUTO) {
+            sessionRepository.setSessionCreatedEventMode(this.sessionCreatedEventMode);
+        }
+        else if (hasSessionCreatedEventListeners()) {
+            sessionRepository.setSessionCreatedEventMode(SessionCreatedEventMode.FULL);
+        }
+        else {
+            LoggerFactory.getLogger(getClass()).warn("No SessionCreatedEvent listener found, session created "
+                    + "events are not published, nodes listening for them will not receive any");
+            sessionRepository.setSessionCreatedEventMode(SessionCreatedEventMode.NONE);
+        }
+        if (this.localCacheMaxEntries > 0) {
+            sessionRepository.setSessionCache(new LocalSessionCache(this.localCacheMaxEntries,
+                    this.localCacheMaxBytes, Duration.ofSeconds(this.localCacheTimeToLiveInSeconds)));
+        }
         int database = resolveDatabase();
         sessionRepository.setDatabase(database);
         this.sessionRepositoryCustomizers
@@ -112,17 +226,36 @@ public class CustomRedisHttpSessionConfiguration extends SpringHttpSessionConfig
         if (this.redisSubscriptionExecutor != null) {
             container.setSubscriptionExecutor(this.redisSubscriptionExecutor);
         }
-        container.addMessageListener(sessionRepository,
-                Arrays.asList(new ChannelTopic(sessionRepository.getSessionDeletedChannel()),
-                        new ChannelTopic(sessionRepository.getSessionExpiredChannel())));
-        container.addMessageListener(sessionRepository,
-                Collections.singletonList(new PatternTopic(sessionRepository.getSessionCreatedChannelPrefix() + "*")));
+        if (sessionRepository.getExpirationStrategy() == SessionExpirationStrategy.MINUTE_BUCKETS) {
+            container.addMessageListener(sessionRepository,
+                    Arrays.asList(new ChannelTopic(sessionRepository.getSessionDeletedChannel()),
+                            new ChannelTopic(sessionRepository.getSessionExpiredChannel())));
+        }
+        if (sessionRepository.getSessionCreatedEventMode() != SessionCreatedEventMode.NONE) {
+            container.addMessageListener(sessionRepository,
+                    Collections.singletonList(new PatternTopic(sessionRepository.getSessionCreatedChannelPrefix() + "*")));
+        }
+        if (sessionRepository.getSessionCache() != null) {
+            container.addMessageListener(sessionRepository,
+                    new ChannelTopic(sessionRepository.getSessionInvalidatedChannel()));
+        }
         return container;
     }
 
+    /**
+     * Records the storage features of the repository once it is customized, for the
+     * reactive services sharing the sessions to check.
+     */
+    @Bean
+    public InitializingBean sessionLayoutPublisher(CustomSIDRedisIndexedSessionRepository sessionRepository) {
+        return sessionRepository::publishLayout;
+    }
+
     @Bean
     public InitializingBean enableRedisKeyspaceNotificationsInitializer() {
-        return new CustomRedisHttpSessionConfiguration.EnableRedisKeyspaceNotificationsInitializer(this.redisConnectionFactory, this.configureRedisAction);
+        ConfigureRedisAction configure = (this.expirationStrategy == SessionExpirationStrategy.SORTED_SET)
+                ? ConfigureRedisAction.NO_OP : this.configureRedisAction;
+        return new CustomRedisHttpSessionConfiguration.EnableRedisKeyspaceNotificationsInitializer(this.redisConnectionFactory, configure);
     }
 
     public void setMaxInactiveIntervalInSeconds(int maxInactiveIntervalInSeconds) {
@@ -152,6 +285,103 @@ public class CustomRedisHttpSessionConfiguration extends SpringHttpSessionConfig
         this.cleanupCron = cleanupCron;
     }
 
+    public void setPipelinedSave(boolean pipelinedSave) {
+        this.pipelinedSave = pipelinedSave;
+    }
+
+    public void setScriptedDelete(boolean scriptedDelete) {
+        this.scriptedDelete = scriptedDelete;
+    }
+
+    public void setSortedPrincipalIndex(boolean sortedPrincipalIndex) {
+        this.sortedPrincipalIndex = sortedPrincipalIndex;
+    }
+
+    public void setMaxSessionsPerPrincipal(int maxSessionsPerPrincipal) {
+        this.maxSessionsPerPrincipal = maxSessionsPerPrincipal;
+    }
+
+    public void setLocalCacheMaxEntries(int localCacheMaxEntries) {
+        this.localCacheMaxEntries = localCacheMaxEntries;
+    }
+
+    public void setLocalCacheMaxBytes(long localCacheMaxBytes) {
+        this.localCacheMaxBytes = localCacheMaxBytes;
+    }
+
+    public void setLocalCacheTimeToLiveInSeconds(int localCacheTimeToLiveInSeconds) {
+        this.localCacheTimeToLiveInSeconds = localCacheTimeToLiveInSeconds;
+    }
+
+    public void setExpirationStrategy(SessionExpirationStrategy expirationStrategy) {
+        Objects.requireNonNull(expirationStrategy, "expirationStrategy cannot be null");
+        this.expirationStrategy = expirationStrategy;
+    }
+
+    public void setCleanupCoordinated(boolean cleanupCoordinated) {
+        this.cleanupCoordinated = cleanupCoordinated;
+    }
+
+    public void setEventProcessingThreads(int eventProcessingThreads) {
+        this.eventProcessingThreads = eventProcessingThreads;
+    }
+
+    public void setEventQueueCapacity(int eventQueueCapacity) {
+        this.eventQueueCapacity = eventQueueCapacity;
+    }
+
+    public void setTouchGranularityInSeconds(int touchGranularityInSeconds) {
+        this.touchGranularityInSeconds = touchGranularityInSeconds;
+    }
+
+    public void setHashTaggedKeys(boolean hashTaggedKeys) {
+        this.hashTaggedKeys = hashTaggedKeys;
+    }
+
+    public void setCompressionThresholdInBytes(int compressionThresholdInBytes) {
+        this.compressionThresholdInBytes = compressionThresholdInBytes;
+    }
+
+    public void setDetachedAttributes(String... detachedAttributes) {
+        this.detachedAttributes = detachedAttributes;
+    }
+
+    public void setWriteBehindFlushIntervalInMillis(int writeBehindFlushIntervalInMillis) {
+        this.writeBehindFlushIntervalInMillis = writeBehindFlushIntervalInMillis;
+    }
+
+    public void setWriteBehindMaxPending(int writeBehindMaxPending) {
+        this.writeBehindMaxPending = writeBehindMaxPending;
+    }
+
+    public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    public void setCircuitBreakerSlowCallThresholdInMillis(int circuitBreakerSlowCallThresholdInMillis) {
+        this.circuitBreakerSlowCallThresholdInMillis = circuitBreakerSlowCallThresholdInMillis;
+    }
+
+    public void setCircuitBreakerOpenDurationInSeconds(int circuitBreakerOpenDurationInSeconds) {
+        this.circuitBreakerOpenDurationInSeconds = circuitBreakerOpenDurationInSeconds;
+    }
+
+    public void setCircuitBreakerMaxLocalSessions(int circuitBreakerMaxLocalSessions) {
+        this.circuitBreakerMaxLocalSessions = circuitBreakerMaxLocalSessions;
+    }
+
+    public void setSessionCreatedEventMode(SessionCreatedEventMode sessionCreatedEventMode) {
+        Objects.requireNonNull(sessionCreatedEventMode, "sessionCreatedEventMode cannot be null");
+        this.sessionCreatedEventMode = sessionCreatedEventMode;
+    }
+
+    @Override
+    @Autowired(required = false)
+    public void setHttpSessionListeners(List<HttpSessionListener> listeners) {
+        super.setHttpSessionListeners(listeners);
+        this.httpSessionListenersPresent = !listeners.isEmpty();
+    }
+
     @Autowired(required = false)
     public void setConfigureRedisAction(ConfigureRedisAction configureRedisAction) {
         this.configureRedisAction = configureRedisAction;
@@ -207,6 +437,11 @@ public class CustomRedisHttpSessionConfiguration extends SpringHttpSessionConfig
         this.classLoader = classLoader;
     }
 
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) {
+        this.beanFactory = beanFactory;
+    }
+
     @Override
     public void setEmbeddedValueResolver(StringValueResolver resolver) {
         this.embeddedValueResolver = resolver;
@@ -234,14 +469,51 @@ public class CustomRedisHttpSessionConfiguration extends SpringHttpSessionConfig
         if (Strings.isNotBlank(cleanupCron)) {
             this.cleanupCron = cleanupCron;
         }
+        this.pipelinedSave = attributes.getBoolean("pipelinedSave");
+        this.scriptedDelete = attributes.getBoolean("scriptedDelete");
+        this.sortedPrincipalIndex = attributes.getBoolean("sortedPrincipalIndex");
+        this.maxSessionsPerPrincipal = attributes.getNumber("maxSessionsPerPrincipal");
+        this.localCacheMaxEntries = attributes.getNumber("localCacheMaxEntries");
+        this.localCacheMaxBytes = attributes.getNumber("localCacheMaxBytes");
+        this.localCacheTimeToLiveInSeconds = attributes.getNumber("localCacheTimeToLiveInSeconds");
+        this.expirationStrategy = attributes.getEnum("expirationStrategy");
+        this.cleanupCoordinated = attributes.getBoolean("cleanupCoordinated");
+        this.eventProcessingThreads = attributes.getNumber("eventProcessingThreads");
+        this.eventQueueCapacity = attributes.getNumber("eventQueueCapacity");
+        this.touchGranularityInSeconds = attributes.getNumber("touchGranularityInSeconds");
+        this.hashTaggedKeys = attributes.getBoolean("hashTaggedKeys");
+        this.compressionThresholdInBytes = attributes.getNumber("compressionThresholdInBytes");
+        this.detachedAttributes = attributes.getStringArray("detachedAttributes");
+        this.writeBehindFlushIntervalInMillis = attributes.getNumber("writeBehindFlushIntervalInMillis");
+        this.writeBehindMaxPending = attributes.getNumber("writeBehindMaxPending");
+        this.circuitBreakerFailureThreshold = attributes.getNumber("circuitBreakerFailureThreshold");
+        this.circuitBreakerSlowCallThresholdInMillis = attributes.getNumber("circuitBreakerSlowCallThresholdInMillis");
+        this.circuitBreakerOpenDurationInSeconds = attributes.getNumber("circuitBreakerOpenDurationInSeconds");
+        this.circuitBreakerMaxLocalSessions = attributes.getNumber("circuitBreakerMaxLocalSessions");
+        this.sessionCreatedEventMode = attributes.getEnum("sessionCreatedEventMode");
+    }
+
+    /**
+     * The template and the repository share the serializer, the repository reads with it
+     * what the template wrote to the session created channel.
+     */
+    private RedisSerializer<Object> createDefaultRedisSerializer() {
+        if (this.compressionThresholdInBytes < 0) {
+            return this.defaultRedisSerializer;
+        }
+        RedisSerializer<Object> delegate = (this.defaultRedisSerializer != null)
+                ? this.defaultRedisSerializer : new JdkSerializationRedisSerializer(this.classLoader);
+        CompressingRedisSerializer compressingRedisSerializer = new CompressingRedisSerializer(delegate);
+        compressingRedisSerializer.setThreshold(this.compressionThresholdInBytes);
+        return compressingRedisSerializer;
     }
 
-    private RedisTemplate<Object, Object> createRedisTemplate() {
+    private RedisTemplate<Object, Object> createRedisTemplate(RedisSerializer<Object> defaultSerializer) {
         RedisTemplate<Object, Object> redisTemplate = new RedisTemplate<>();
         redisTemplate.setKeySerializer(new StringRedisSerializer());
         redisTemplate.setHashKeySerializer(new StringRedisSerializer());
-        if (this.defaultRedisSerializer != null) {
-            redisTemplate.setDefaultSerializer(this.defaultRedisSerializer);
+        if (defaultSerializer != null) {
+            redisTemplate.setDefaultSerializer(defaultSerializer);
         }
         redisTemplate.setConnectionFactory(this.redisConnectionFactory);
         redisTemplate.setBeanClassLoader(this.classLoader);
@@ -249,6 +521,93 @@ public class CustomRedisHttpSessionConfiguration extends SpringHttpSessionConfig
         return redisTemplate;
     }
 
+    /**
+     * Returns the time between two ticks of the cleanup cron, or {@code null} if it
+     * cannot be told.
+     */
+    private Duration getCleanupInterval() {
+        if (!CronExpression.isValidExpression(this.cleanupCron)) {
+            return null;
+        }
+        CronExpression cron = CronExpression.parse(this.cleanupCron);
+        LocalDateTime next = cron.next(LocalDateTime.now());
+        LocalDateTime afterNext = (next != null) ? cron.next(next) : null;
+        if (afterNext == null) {
+            return null;
+        }
+        Duration interval = Duration.between(next, afterNext);
+        return interval.isZero() || interval.isNegative() ? null : interval;
+    }
+
+    /**
+     * Looks through the bean definitions for anything that would receive a
+     * {@link SessionCreatedEvent}: an {@link ApplicationListener} or an
+     * {@link EventListener} method declared for it or for one of its session event
+     * supertypes. Listeners of any event, such as the smart and generic listeners that
+     * relay events elsewhere, are not counted, they are in every Spring Security
+     * application. Session events are relayed to {@link HttpSessionListener}s only if
+     * there are any. When in doubt about a bean type, a listener is assumed.
+     */
+    private boolean hasSessionCreatedEventListeners() {
+        if (!(this.beanFactory instanceof ListableBeanFactory)) {
+            return true;
+        }
+        ListableBeanFactory listableBeanFactory = (ListableBeanFactory) this.beanFactory;
+        for (String beanName : listableBeanFactory.getBeanDefinitionNames()) {
+            Class<?> beanType;
+            try {
+                beanType = listableBeanFactory.getType(beanName, false);
+            }
+            catch (RuntimeException ex) {
+                return true;
+            }
+            if (beanType == null) {
+                continue;
+            }
+            beanType = ClassUtils.getUserClass(beanType);
+            if (SessionEventHttpSessionListenerAdapter.class.isAssignableFrom(beanType)) {
+                if (this.httpSessionListenersPresent) {
+                    return true;
+                }
+            }
+            else if (ApplicationListener.class.isAssignableFrom(beanType)
+                    && supportsSessionCreatedEvent(beanType)) {
+                return true;
+            }
+            if (hasSessionCreatedEventListenerMethod(beanType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean supportsSessionCreatedEvent(Class<?> listenerType) {
+        Class<?> eventType = ResolvableType.forClass(listenerType).as(ApplicationListener.class).getGeneric().resolve();
+        return isSessionCreatedEventType(eventType);
+    }
+
+    private static boolean isSessionCreatedEventType(Class<?> eventType) {
+        return eventType != null && AbstractSessionEvent.class.isAssignableFrom(eventType)
+                && eventType.isAssignableFrom(SessionCreatedEvent.class);
+    }
+
+    private static boolean hasSessionCreatedEventListenerMethod(Class<?> beanType) {
+        for (Method method : ReflectionUtils.getUniqueDeclaredMethods(beanType)) {
+            EventListener eventListener = AnnotatedElementUtils.findMergedAnnotation(method, EventListener.class);
+            if (eventListener == null) {
+                continue;
+            }
+            Class<?>[] eventTypes = (eventListener.classes().length > 0)
+                    ? eventListener.classes() : method.getParameterTypes();
+            for (Class<?> eventType : eventTypes) {
+                if (isSessionCreatedEventType(eventType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private int resolveDatabase() {
         if (ClassUtils.isPresent("io.lettuce.core.RedisClient", null)
                 && this.redisConnectionFactory instanceof LettuceConnectionFactory) {
@@ -0,0 +1,180 @@
+package ppl.server.base.session;
+
+import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.EmbeddedValueResolverAware;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.ImportAware;
+import org.springframework.core.annotation.AnnotationAttributes;
+import org.springframework.core.type.AnnotationMetadata;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.session.MapSession;
+import org.springframework.session.SaveMode;
+import org.springframework.session.config.ReactiveSessionRepositoryCustomizer;
+import org.springframework.session.config.annotation.web.server.SpringWebSessionConfiguration;
+import org.springframework.session.data.redis.config.annotation.SpringSessionRedisConnectionFactory;
+import org.springframework.util.StringValueResolver;
+import ppl.common.utils.string.Strings;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+@Configuration(proxyBeanMethods = false)
+public class CustomRedisWebSessionConfiguration extends SpringWebSessionConfiguration
+        implements BeanClassLoaderAware, EmbeddedValueResolverAware, ImportAware {
+
+    private static final Duration LAYOUT_CHECK_TIMEOUT = Duration.ofSeconds(10);
+
+    private Integer maxInactiveIntervalInSeconds = MapSession.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS;
+
+    private String redisNamespace = CustomSIDReactiveRedisSessionRepository.DEFAULT_NAMESPACE;
+
+    private SaveMode saveMode = SaveMode.ON_SET_ATTRIBUTE;
+
+    private boolean hashTaggedKeys;
+
+    private boolean indexedCompatible = true;
+
+    private int compressionThresholdInBytes = -1;
+
+    private ReactiveRedisConnectionFactory redisConnectionFactory;
+
+    private RedisSerializer<Object> defaultRedisSerializer;
+
+    private List<ReactiveSessionRepositoryCustomizer<CustomSIDReactiveRedisSessionRepository>> sessionRepositoryCustomizers;
+
+    private ClassLoader classLoader;
+
+    private StringValueResolver embeddedValueResolver;
+
+    @Bean
+    public CustomSIDReactiveRedisSessionRepository sessionRepository() {
+        ReactiveRedisTemplate<String, Object> reactiveRedisTemplate = createReactiveRedisTemplate();
+        CustomSIDReactiveRedisSessionRepository sessionRepository = new CustomSIDReactiveRedisSessionRepository(
+                reactiveRedisTemplate);
+        sessionRepository.setDefaultMaxInactiveInterval(Duration.ofSeconds(this.maxInactiveIntervalInSeconds));
+        if (Strings.isNotBlank(this.redisNamespace)) {
+            sessionRepository.setRedisKeyNamespace(this.redisNamespace);
+        }
+        sessionRepository.setSaveMode(this.saveMode);
+        sessionRepository.setHashTaggedKeys(this.hashTaggedKeys);
+        sessionRepository.setIndexedCompatible(this.indexedCompatible);
+        this.sessionRepositoryCustomizers
+                .forEach((sessionRepositoryCustomizer) -> sessionRepositoryCustomizer.customize(sessionRepository));
+        return sessionRepository;
+    }
+
+    /**
+     * Fails the startup if the blocking services sharing the sessions use storage
+     * features the reactive repository does not support.
+     */
+    @Bean
+    public InitializingBean sessionLayoutCheck(CustomSIDReactiveRedisSessionRepository sessionRepository) {
+        return () -> sessionRepository.checkLayout().block(LAYOUT_CHECK_TIMEOUT);
+    }
+
+    public void setMaxInactiveIntervalInSeconds(int maxInactiveIntervalInSeconds) {
+        this.maxInactiveIntervalInSeconds = maxInactiveIntervalInSeconds;
+    }
+
+    public void setRedisNamespace(String namespace) {
+        this.redisNamespace = namespace;
+    }
+
+    public void setSaveMode(SaveMode saveMode) {
+        this.saveMode = saveMode;
+    }
+
+    public void setHashTaggedKeys(boolean hashTaggedKeys) {
+        this.hashTaggedKeys = hashTaggedKeys;
+    }
+
+    public void setIndexedCompatible(boolean indexedCompatible) {
+        this.indexedCompatible = indexedCompatible;
+    }
+
+    public void setCompressionThresholdInBytes(int compressionThresholdInBytes) {
+        this.compressionThresholdInBytes = compressionThresholdInBytes;
+    }
+
+    @Autowired
+    public void setRedisConnectionFactory(
+            @SpringSessionRedisConnectionFactory ObjectProvider<ReactiveRedisConnectionFactory> springSessionRedisConnectionFactory,
+            ObjectProvider<ReactiveRedisConnectionFactory> redisConnectionFactory) {
+        ReactiveRedisConnectionFactory redisConnectionFactoryToUse = springSessionRedisConnectionFactory
+                .getIfAvailable();
+        if (redisConnectionFactoryToUse == null) {
+            redisConnectionFactoryToUse = redisConnectionFactory.getObject();
+        }
+        this.redisConnectionFactory = redisConnectionFactoryToUse;
+    }
+
+    @Autowired(required = false)
+    @Qualifier("springSessionDefaultRedisSerializer")
+    public void setDefaultRedisSerializer(RedisSerializer<Object> defaultRedisSerializer) {
+        this.defaultRedisSerializer = defaultRedisSerializer;
+    }
+
+    @Autowired(required = false)
+    public void setSessionRepositoryCustomizer(
+            ObjectProvider<ReactiveSessionRepositoryCustomizer<CustomSIDReactiveRedisSessionRepository>> sessionRepositoryCustomizers) {
+        this.sessionRepositoryCustomizers = sessionRepositoryCustomizers.orderedStream().collect(Collectors.toList());
+    }
+
+    @Override
+    public void setBeanClassLoader(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    @Override
+    public void setEmbeddedValueResolver(StringValueResolver resolver) {
+        this.embeddedValueResolver = resolver;
+    }
+
+    @Override
+    public void setImportMetadata(AnnotationMetadata importMetadata) {
+        Map<String, Object> attributeMap = importMetadata
+                .getAnnotationAttributes(EnableCustomRedisWebSession.class.getName());
+        AnnotationAttributes attributes = AnnotationAttributes.fromMap(attributeMap);
+        this.maxInactiveIntervalInSeconds = attributes.getNumber("maxInactiveIntervalInSeconds");
+        String redisNamespaceValue = attributes.getString("redisNamespace");
+        if (Strings.isNotBlank(redisNamespaceValue)) {
+            this.redisNamespace = this.embeddedValueResolver.resolveStringValue(redisNamespaceValue);
+        }
+        this.saveMode = attributes.getEnum("saveMode");
+        this.hashTaggedKeys = attributes.getBoolean("hashTaggedKeys");
+        this.indexedCompatible = attributes.getBoolean("indexedCompatible");
+        this.compressionThresholdInBytes = attributes.getNumber("compressionThresholdInBytes");
+    }
+
+    /**
+     * Keys and hash keys are strings and hash values go through the default serializer,
+     * as in {@link CustomRedisHttpSessionConfiguration}, so both see the same bytes.
+     */
+    private ReactiveRedisTemplate<String, Object> createReactiveRedisTemplate() {
+        RedisSerializer<String> keySerializer = new StringRedisSerializer();
+        RedisSerializer<Object> defaultSerializer = (this.defaultRedisSerializer != null)
+                ? this.defaultRedisSerializer : new JdkSerializationRedisSerializer(this.classLoader);
+        if (this.compressionThresholdInBytes >= 0) {
+            CompressingRedisSerializer compressingRedisSerializer = new CompressingRedisSerializer(defaultSerializer);
+            compressingRedisSerializer.setThreshold(this.compressionThresholdInBytes);
+            defaultSerializer = compressingRedisSerializer;
+        }
+        RedisSerializationContext<String, Object> serializationContext = RedisSerializationContext
+                .<String, Object>newSerializationContext(defaultSerializer).key(keySerializer).hashKey(keySerializer)
+                .build();
+        return new ReactiveRedisTemplate<>(this.redisConnectionFactory, serializationContext);
+    }
+
+}
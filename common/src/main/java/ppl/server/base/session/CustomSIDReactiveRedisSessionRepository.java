@@ -0,0 +1,384 @@
+package ppl.server.base.session;
+
+import org.reactivestreams.Publisher;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.session.MapSession;
+import org.springframework.session.ReactiveSessionRepository;
+import org.springframework.session.SaveMode;
+import org.springframework.session.Session;
+import ppl.common.utils.string.Strings;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A {@link ReactiveSessionRepository} on {@link ReactiveRedisOperations}, with pluggable
+ * session ids. Sessions are stored in the same hash, under the same namespace and with
+ * the same fields as {@link CustomSIDRedisIndexedSessionRepository}, so that blocking and
+ * reactive services can share them.
+ * </p>
+ * <p>
+ * Unless {@link #setIndexedCompatible(boolean)} is turned off, every save also refreshes
+ * the expires key and the expiration bucket the indexed repository relies on, so that a
+ * session kept alive by a reactive service does not expire for blocking services. The
+ * principal index is not maintained.
+ * </p>
+ * <p>
+ * The sorted set expiration strategy, the sorted principal index, secondary indexes and
+ * detached attributes of the indexed repository are not supported.
+ * {@link #checkLayout()} fails if the blocking services recorded any of them.
+ * </p>
+ */
+public class CustomSIDReactiveRedisSessionRepository
+        implements ReactiveSessionRepository<CustomSIDReactiveRedisSessionRepository.RedisSession> {
+
+    public static final String DEFAULT_NAMESPACE = "spring:session";
+
+    private static final String SESSION_EXPIRES_PREFIX = "expires:";
+
+    private final ReactiveRedisOperations<String, Object> sessionRedisOperations;
+
+    private String namespace = DEFAULT_NAMESPACE + ":";
+
+    private Duration defaultMaxInactiveInterval = Duration.ofSeconds(MapSession.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS);
+
+    private SaveMode saveMode = SaveMode.ON_SET_ATTRIBUTE;
+
+    private SessionIdGenerator sessionIdGenerator = UuidSessionIdGenerator.getInstance();
+
+    private boolean hashTaggedKeys;
+
+    private boolean indexedCompatible = true;
+
+    public CustomSIDReactiveRedisSessionRepository(ReactiveRedisOperations<String, Object> sessionRedisOperations) {
+        Objects.requireNonNull(sessionRedisOperations, "sessionRedisOperations cannot be null");
+        this.sessionRedisOperations = sessionRedisOperations;
+    }
+
+    public void setRedisKeyNamespace(String namespace) {
+        if (Strings.isBlank(namespace)) {
+            throw new IllegalArgumentException("namespace must not be empty");
+        }
+        this.namespace = namespace.trim() + ":";
+    }
+
+    public void setDefaultMaxInactiveInterval(Duration defaultMaxInactiveInterval) {
+        Objects.requireNonNull(defaultMaxInactiveInterval, "defaultMaxInactiveInterval cannot be null");
+        this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
+    }
+
+    public void setSaveMode(SaveMode saveMode) {
+        Objects.requireNonNull(saveMode, "saveMode cannot be null");
+        this.saveMode = saveMode;
+    }
+
+    public void setSessionIdGenerator(SessionIdGenerator sessionIdGenerator) {
+        Objects.requireNonNull(sessionIdGenerator, "sessionIdGenerator cannot be null");
+        this.sessionIdGenerator = sessionIdGenerator;
+    }
+
+    /**
+     * Sets whether session keys carry the session id in a hash tag. Must match the
+     * setting of the blocking repositories the sessions are shared with.
+     * @param hashTaggedKeys whether to use the hash tagged key layout
+     * @see CustomSIDRedisIndexedSessionRepository#setHashTaggedKeys(boolean)
+     */
+    public void setHashTaggedKeys(boolean hashTaggedKeys) {
+        this.hashTaggedKeys = hashTaggedKeys;
+    }
+
+    /**
+     * Sets whether saves keep the expires key and the minute expiration bucket of
+     * {@link CustomSIDRedisIndexedSessionRepository} up to date. Default is {@code true}.
+     * @param indexedCompatible whether to maintain the indexed expiration bookkeeping
+     */
+    public void setIndexedCompatible(boolean indexedCompatible) {
+        this.indexedCompatible = indexedCompatible;
+    }
+
+    /**
+     * Checks the storage features recorded by
+     * {@link CustomSIDRedisIndexedSessionRepository#publishLayout()}, and fails with an
+     * {@link IllegalStateException} if the blocking services use one this repository
+     * cannot read or keep up to date.
+     * @return a {@link Mono} completing once the layout is checked
+     */
+    public Mono<Void> checkLayout() {
+        ByteBuffer layoutKey = ByteBuffer.wrap((this.namespace + "layout").getBytes(StandardCharsets.UTF_8));
+        return this.sessionRedisOperations
+                .execute((connection) -> connection.setCommands().sMembers(layoutKey))
+                .map((member) -> StandardCharsets.UTF_8.decode(member).toString())
+                .collectList()
+                .flatMap((features) -> features.isEmpty() ? Mono.empty()
+                        : Mono.error(new IllegalStateException("Sessions in namespace " + this.namespace
+                        + " use features the reactive repository does not support: " + features)));
+    }
+
+    public ReactiveRedisOperations<String, Object> getSessionRedisOperations() {
+        return this.sessionRedisOperations;
+    }
+
+    @Override
+    public Mono<RedisSession> createSession() {
+        return Mono.fromSupplier(() -> {
+            MapSession cached = new MapSession(this.sessionIdGenerator.generate());
+            cached.setMaxInactiveInterval(this.defaultMaxInactiveInterval);
+            return new RedisSession(cached, true);
+        });
+    }
+
+    @Override
+    public Mono<Void> save(RedisSession session) {
+        if (session.isNew) {
+            return session.save();
+        }
+        String key = getSessionKey(session.hasChangedSessionId() ? session.originalSessionId : session.getId());
+        return this.sessionRedisOperations.hasKey(key).flatMap((exists) -> exists ? session.save()
+                : Mono.error(new IllegalStateException("Session was invalidated")));
+    }
+
+    /**
+     * Finds the session with the given id. An expired session is not returned but is
+     * left for Redis to expire, so that blocking services still see it when they publish
+     * its expired event.
+     */
+    @Override
+    public Mono<RedisSession> findById(String id) {
+        String sessionKey = getSessionKey(id);
+        return this.sessionRedisOperations.opsForHash().entries(sessionKey)
+                .collectMap((entry) -> entry.getKey().toString(), Map.Entry::getValue)
+                .filter((map) -> !map.isEmpty())
+                .map(new RedisSessionMapper(id))
+                .filter((session) -> !session.isExpired())
+                .map((session) -> new RedisSession(session, false));
+    }
+
+    @Override
+    public Mono<Void> deleteById(String id) {
+        if (!this.indexedCompatible) {
+            return this.sessionRedisOperations.delete(getSessionKey(id)).then();
+        }
+        // like the indexed repository, the hash is kept for a while so that its deleted
+        // event, published when the expires key is deleted, can still read it; a missing
+        // hash is left missing rather than created with the marker alone
+        String sessionKey = getSessionKey(id);
+        String expiresKey = getExpiresKey(id);
+        return this.sessionRedisOperations.hasKey(sessionKey)
+                .flatMap((exists) -> {
+                    if (!exists) {
+                        return this.sessionRedisOperations.delete(expiresKey).then();
+                    }
+                    return this.sessionRedisOperations.opsForHash()
+                            .put(sessionKey, RedisSessionMapper.MAX_INACTIVE_INTERVAL_KEY, 0)
+                            .then(this.sessionRedisOperations.delete(expiresKey))
+                            .then(this.sessionRedisOperations.expire(sessionKey, Duration.ofMinutes(5)))
+                            .then();
+                });
+    }
+
+    private String getSessionKey(String sessionId) {
+        if (this.hashTaggedKeys) {
+            return this.namespace + "sessions:{" + sessionId + "}";
+        }
+        return this.namespace + "sessions:" + sessionId;
+    }
+
+    private String getExpiresKey(String sessionId) {
+        if (this.hashTaggedKeys) {
+            return this.namespace + "sessions:expires:{" + sessionId + "}";
+        }
+        return this.namespace + "sessions:expires:" + sessionId;
+    }
+
+    private String getExpirationsKey(long expiration) {
+        return this.namespace + "expirations:" + expiration;
+    }
+
+    private static String getAttributeKey(String attributeName) {
+        return RedisSessionMapper.ATTRIBUTE_PREFIX + attributeName;
+    }
+
+    final class RedisSession implements Session {
+
+        private final MapSession cached;
+
+        private final Map<String, Object> delta = new HashMap<>();
+
+        private boolean isNew;
+
+        private String originalSessionId;
+
+        RedisSession(MapSession cached, boolean isNew) {
+            this.cached = cached;
+            this.isNew = isNew;
+            this.originalSessionId = cached.getId();
+            if (this.isNew) {
+                this.delta.put(RedisSessionMapper.CREATION_TIME_KEY, cached.getCreationTime().toEpochMilli());
+                this.delta.put(RedisSessionMapper.MAX_INACTIVE_INTERVAL_KEY,
+                        (int) cached.getMaxInactiveInterval().getSeconds());
+                this.delta.put(RedisSessionMapper.LAST_ACCESSED_TIME_KEY, cached.getLastAccessedTime().toEpochMilli());
+            }
+            if (this.isNew || (CustomSIDReactiveRedisSessionRepository.this.saveMode == SaveMode.ALWAYS)) {
+                getAttributeNames().forEach((attributeName) -> this.delta.put(getAttributeKey(attributeName),
+                        cached.getAttribute(attributeName)));
+            }
+        }
+
+        @Override
+        public String getId() {
+            return this.cached.getId();
+        }
+
+        @Override
+        public String changeSessionId() {
+            String id = CustomSIDReactiveRedisSessionRepository.this.sessionIdGenerator.generate();
+            this.cached.setId(id);
+            return id;
+        }
+
+        @Override
+        public <T> T getAttribute(String attributeName) {
+            T attributeValue = this.cached.getAttribute(attributeName);
+            if (attributeValue != null
+                    && CustomSIDReactiveRedisSessionRepository.this.saveMode.equals(SaveMode.ON_GET_ATTRIBUTE)) {
+                this.delta.put(getAttributeKey(attributeName), attributeValue);
+            }
+            return attributeValue;
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return this.cached.getAttributeNames();
+        }
+
+        @Override
+        public void setAttribute(String attributeName, Object attributeValue) {
+            this.cached.setAttribute(attributeName, attributeValue);
+            this.delta.put(getAttributeKey(attributeName), attributeValue);
+        }
+
+        @Override
+        public void removeAttribute(String attributeName) {
+            this.cached.removeAttribute(attributeName);
+            this.delta.put(getAttributeKey(attributeName), null);
+        }
+
+        @Override
+        public Instant getCreationTime() {
+            return this.cached.getCreationTime();
+        }
+
+        @Override
+        public void setLastAccessedTime(Instant lastAccessedTime) {
+            this.cached.setLastAccessedTime(lastAccessedTime);
+            this.delta.put(RedisSessionMapper.LAST_ACCESSED_TIME_KEY, getLastAccessedTime().toEpochMilli());
+        }
+
+        @Override
+        public Instant getLastAccessedTime() {
+            return this.cached.getLastAccessedTime();
+        }
+
+        @Override
+        public void setMaxInactiveInterval(Duration interval) {
+            this.cached.setMaxInactiveInterval(interval);
+            this.delta.put(RedisSessionMapper.MAX_INACTIVE_INTERVAL_KEY, (int) getMaxInactiveInterval().getSeconds());
+        }
+
+        @Override
+        public Duration getMaxInactiveInterval() {
+            return this.cached.getMaxInactiveInterval();
+        }
+
+        @Override
+        public boolean isExpired() {
+            return this.cached.isExpired();
+        }
+
+        private boolean hasChangedSessionId() {
+            return !getId().equals(this.originalSessionId);
+        }
+
+        private Mono<Void> save() {
+            return Mono.defer(() -> saveChangeSessionId().then(saveDelta()).doOnSuccess((aVoid) -> this.isNew = false));
+        }
+
+        private Mono<Void> saveChangeSessionId() {
+            if (!hasChangedSessionId()) {
+                return Mono.empty();
+            }
+            String sessionId = getId();
+            Publisher<Void> replaceSessionId = (s) -> {
+                this.originalSessionId = sessionId;
+                s.onComplete();
+            };
+            if (this.isNew) {
+                return Mono.from(replaceSessionId);
+            }
+            ReactiveRedisOperations<String, Object> redis = CustomSIDReactiveRedisSessionRepository.this.sessionRedisOperations;
+            Mono<Boolean> renameSession = redis.rename(getSessionKey(this.originalSessionId), getSessionKey(sessionId));
+            if (!CustomSIDReactiveRedisSessionRepository.this.indexedCompatible) {
+                return renameSession.and(replaceSessionId);
+            }
+            Mono<Boolean> renameExpires = redis.rename(getExpiresKey(this.originalSessionId), getExpiresKey(sessionId))
+                    .onErrorResume((ex) -> Mono.just(false));
+            return renameSession.then(renameExpires).and(replaceSessionId);
+        }
+
+        private Mono<Void> saveDelta() {
+            if (this.delta.isEmpty()) {
+                return Mono.empty();
+            }
+            String sessionKey = getSessionKey(getId());
+            Mono<Boolean> update = CustomSIDReactiveRedisSessionRepository.this.sessionRedisOperations.opsForHash()
+                    .putAll(sessionKey, new HashMap<>(this.delta));
+            Mono<Boolean> setTtl = CustomSIDReactiveRedisSessionRepository.this.indexedCompatible
+                    ? updateExpiration(sessionKey) : updateTtl(sessionKey);
+            return update.then(setTtl).and((s) -> {
+                this.delta.clear();
+                s.onComplete();
+            }).then();
+        }
+
+        private Mono<Boolean> updateTtl(String sessionKey) {
+            ReactiveRedisOperations<String, Object> redis = CustomSIDReactiveRedisSessionRepository.this.sessionRedisOperations;
+            if (getMaxInactiveInterval().isNegative()) {
+                return redis.persist(sessionKey);
+            }
+            return redis.expire(sessionKey, getMaxInactiveInterval());
+        }
+
+        /**
+         * Does what {@link RedisSessionExpirationPolicy} does on save: the expires key
+         * lives for the max inactive interval, the hash and the minute bucket five
+         * minutes longer.
+         */
+        private Mono<Boolean> updateExpiration(String sessionKey) {
+            ReactiveRedisOperations<String, Object> redis = CustomSIDReactiveRedisSessionRepository.this.sessionRedisOperations;
+            String expiresKey = getExpiresKey(getId());
+            long sessionExpireInSeconds = getMaxInactiveInterval().getSeconds();
+            if (sessionExpireInSeconds < 0) {
+                return redis.opsForValue().set(expiresKey, "")
+                        .then(redis.persist(sessionKey));
+            }
+            long expiresInMillis = getLastAccessedTime().toEpochMilli()
+                    + TimeUnit.SECONDS.toMillis(sessionExpireInSeconds);
+            String expirationsKey = getExpirationsKey(RedisSessionExpirationPolicy.roundUpToNextMinute(expiresInMillis));
+            Duration fiveMinutesAfterExpires = Duration.ofSeconds(sessionExpireInSeconds + TimeUnit.MINUTES.toSeconds(5));
+            Mono<Boolean> expires = (sessionExpireInSeconds == 0) ? redis.delete(expiresKey).thenReturn(true)
+                    : redis.opsForValue().set(expiresKey, "", Duration.ofSeconds(sessionExpireInSeconds));
+            return redis.opsForSet().add(expirationsKey, SESSION_EXPIRES_PREFIX + getId())
+                    .then(redis.expire(expirationsKey, fiveMinutesAfterExpires))
+                    .then(expires)
+                    .then(redis.expire(sessionKey, fiveMinutesAfterExpires));
+        }
+
+    }
+
+}
@@ -2,14 +2,23 @@ package ppl.server.base.session;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.core.NestedExceptionUtils;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.NonTransientDataAccessException;
 import org.springframework.data.redis.connection.Message;
 import org.springframework.data.redis.connection.MessageListener;
-import org.springframework.data.redis.core.BoundHashOperations;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
 import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.util.ByteUtils;
@@ -20,9 +29,18 @@ import org.springframework.session.events.SessionDestroyedEvent;
 import org.springframework.session.events.SessionExpiredEvent;
 import ppl.common.utils.string.Strings;
 
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * <p>
@@ -66,7 +84,8 @@ import java.util.*;
  * </p>
  */
 public class CustomSIDRedisIndexedSessionRepository
-        implements FindByIndexNameSessionRepository<CustomSIDRedisIndexedSessionRepository.RedisSession>, MessageListener {
+        implements FindByIndexNameSessionRepository<CustomSIDRedisIndexedSessionRepository.RedisSession>, MessageListener,
+        DisposableBean {
 
     private static final Logger log = LoggerFactory.getLogger(CustomSIDRedisIndexedSessionRepository.class);
 
@@ -76,6 +95,133 @@ public class CustomSIDRedisIndexedSessionRepository
 
     public static final String DEFAULT_NAMESPACE = "spring:session";
 
+    static final int DEFAULT_EVENT_BATCH_SIZE = 100;
+
+    static final int INVALIDATE_BATCH_SIZE = 100;
+
+    /**
+     * How long the hash of an invalidated session is kept, for the destroyed event to
+     * read it.
+     */
+    static final long INVALIDATED_GRACE_PERIOD_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+
+    /**
+     * The storage features recorded by {@link #publishLayout()} that sessions written by
+     * this repository may depend on.
+     */
+    static final String LAYOUT_SORTED_SET_EXPIRATION = "sorted-set-expiration";
+
+    static final String LAYOUT_SORTED_PRINCIPAL_INDEX = "sorted-principal-index";
+
+    static final String LAYOUT_SECONDARY_INDEXES = "secondary-indexes";
+
+    static final String LAYOUT_DETACHED_ATTRIBUTES = "detached-attributes";
+
+    static final int WRITE_BEHIND_BATCH_SIZE = 100;
+
+    public static final int DEFAULT_WRITE_BEHIND_MAX_PENDING = 10000;
+
+    static final int WRITE_BEHIND_MAX_ATTEMPTS = 3;
+
+    /**
+     * Invalidates sessions the way {@link #deleteById(String)} does, without reading
+     * them. KEYS are the session key and the expires key of every session, followed by
+     * the principal index key if the sessions are removed from it. ARGV are the max
+     * inactive interval field and its zero value, the detached attribute field prefix, the
+     * grace period in seconds and the command removing a member from the principal index,
+     * followed by the principal index member of every session. The member of the session
+     * in its expiration bucket is left behind, the cleanup skips it as the expires key is
+     * gone. Only declared keys are touched, the keys of the detached attributes are
+     * expired by the caller. Returns for every session {@code 0} if it did not exist, or
+     * the detached attribute fields of its hash.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> INVALIDATE = new DefaultRedisScript<>(
+            "local n = math.floor(#KEYS / 2) " +
+                    "local principalKey = KEYS[2 * n + 1] " +
+                    "local result = {} " +
+                    "for i = 1, n do " +
+                    "local sessionKey = KEYS[2 * i - 1] " +
+                    "if redis.call('exists', sessionKey) == 1 then " +
+                    "local detached = {} " +
+                    "for _, field in ipairs(redis.call('hkeys', sessionKey)) do " +
+                    "if string.sub(field, 1, #ARGV[3]) == ARGV[3] then " +
+                    "detached[#detached + 1] = field " +
+                    "end " +
+                    "end " +
+                    "redis.call('hset', sessionKey, ARGV[1], ARGV[2]) " +
+                    "redis.call('expire', sessionKey, ARGV[4]) " +
+                    "redis.call('del', KEYS[2 * i]) " +
+                    "result[i] = detached " +
+                    "else " +
+                    "result[i] = 0 " +
+                    "end " +
+                    "if principalKey then " +
+                    "redis.call(ARGV[5], principalKey, ARGV[5 + i]) " +
+                    "end " +
+                    "end " +
+                    "return result", List.class);
+
+    /**
+     * Adds a session to a sorted principal index and takes the least recently used
+     * sessions of the principal beyond the maximum out of it. KEYS is the principal index
+     * key. ARGV are the session id, its last accessed time and the maximum number of
+     * sessions or {@code 0} for no maximum. Returns the ids of the sessions taken out,
+     * which the caller invalidates with {@link #INVALIDATE}.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> INDEX_PRINCIPAL = new DefaultRedisScript<>(
+            "redis.call('zadd', KEYS[1], ARGV[2], ARGV[1]) " +
+                    "local max = tonumber(ARGV[3]) " +
+                    "if max <= 0 then " +
+                    "return {} " +
+                    "end " +
+                    "local excess = redis.call('zcard', KEYS[1]) - max " +
+                    "if excess <= 0 then " +
+                    "return {} " +
+                    "end " +
+                    "local evicted = redis.call('zrange', KEYS[1], 0, excess - 1) " +
+                    "redis.call('zrem', KEYS[1], unpack(evicted)) " +
+                    "return evicted", List.class);
+
+    /**
+     * Moves sessions from a principal index set written before the sorted principal
+     * index into the sorted one, scored as least recently used unless they are in it
+     * already. KEYS are the set and the sorted set. ARGV are, for every session, its
+     * member in the set followed by its id. A member added to the set meanwhile stays
+     * there for the next move. Returns the ids in the sorted set.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> MIGRATE_PRINCIPAL_INDEX = new DefaultRedisScript<>(
+            "for i = 1, #ARGV, 2 do " +
+                    "if redis.call('srem', KEYS[1], ARGV[i]) == 1 then " +
+                    "redis.call('zadd', KEYS[2], 'NX', 0, ARGV[i + 1]) " +
+                    "end " +
+                    "end " +
+                    "return redis.call('zrange', KEYS[2], 0, -1)", List.class);
+
+    /**
+     * Returns for every session key whether the session exists and was not marked
+     * expired. KEYS are the session keys. ARGV are the max inactive interval field and
+     * its zero value.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> LIVE_SESSIONS = new DefaultRedisScript<>(
+            "local result = {} " +
+                    "for i, key in ipairs(KEYS) do " +
+                    "local maxInactive = redis.call('hget', key, ARGV[1]) " +
+                    "if maxInactive and maxInactive ~= ARGV[2] then " +
+                    "result[i] = 1 " +
+                    "else " +
+                    "result[i] = 0 " +
+                    "end " +
+                    "end " +
+                    "return result", List.class);
+
+    static final long PRINCIPAL_INDEX_COMPACTION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    static final int PRINCIPAL_INDEX_COMPACTION_BATCH_SIZE = 100;
+
     private int database = DEFAULT_DATABASE;
 
     private String namespace = DEFAULT_NAMESPACE + ":";
@@ -92,13 +238,21 @@ public class CustomSIDRedisIndexedSessionRepository
 
     private byte[] sessionExpiredChannelBytes;
 
+    private String sessionInvalidatedChannel;
+
+    private byte[] sessionInvalidatedChannelBytes;
+
     private String expiredKeyPrefix;
 
     private byte[] expiredKeyPrefixBytes;
 
     private final RedisOperations<Object, Object> sessionRedisOperations;
 
-    private final RedisSessionExpirationPolicy expirationPolicy;
+    private SessionExpirationStrategy expirationStrategy = SessionExpirationStrategy.MINUTE_BUCKETS;
+
+    private SessionExpirationPolicy expirationPolicy;
+
+    private int cleanupBatchSize = RedisSessionExpirationPolicy.DEFAULT_CLEANUP_BATCH_SIZE;
 
     private ApplicationEventPublisher eventPublisher = (event) -> {
     };
@@ -107,6 +261,8 @@ public class CustomSIDRedisIndexedSessionRepository
 
     private IndexResolver<Session> indexResolver = new DelegatingIndexResolver<>(new PrincipalNameIndexResolver<>());
 
+    private boolean secondaryIndexes;
+
     private RedisSerializer<Object> defaultSerializer = new JdkSerializationRedisSerializer();
 
     private FlushMode flushMode = FlushMode.ON_SAVE;
@@ -115,14 +271,80 @@ public class CustomSIDRedisIndexedSessionRepository
 
     private SessionIdGenerator sessionIdGenerator = UuidSessionIdGenerator.getInstance();
 
+    private boolean pipelinedSave;
+
+    private boolean scriptedDelete;
+
+    private boolean sortedPrincipalIndex;
+
+    private int maxSessionsPerPrincipal;
+
+    private volatile long lastPrincipalIndexCompaction = System.currentTimeMillis();
+
+    private LocalSessionCache sessionCache;
+
+    private final String nodeId = createNodeId();
+
+    private final SessionCleanupCoordinator cleanupCoordinator;
+
+    private boolean cleanupCoordinated = true;
+
+    private SessionEventProcessor eventProcessor;
+
+    private SessionWriteBehindFlusher<RedisSession> writeBehindFlusher;
+
+    private SessionCircuitBreaker circuitBreaker;
+
+    private DegradedSessionStore<RedisSession> degradedStore;
+
+    private ExecutorService reconciler;
+
+    private final AtomicBoolean reconcileScheduled = new AtomicBoolean();
+
+    private final LongAdder degradedReadCount = new LongAdder();
+
+    private Duration touchGranularity = Duration.ZERO;
+
+    private boolean hashTaggedKeys;
+
+    private boolean legacyKeyFallback = true;
+
+    private SessionCreatedEventMode sessionCreatedEventMode = SessionCreatedEventMode.FULL;
+
+    private Set<String> detachedAttributes = Collections.emptySet();
+
     public CustomSIDRedisIndexedSessionRepository(RedisOperations<Object, Object> sessionRedisOperations) {
         Objects.requireNonNull(sessionRedisOperations, "sessionRedisOperations cannot be null");
         this.sessionRedisOperations = sessionRedisOperations;
-        this.expirationPolicy = new RedisSessionExpirationPolicy(sessionRedisOperations, this::getExpirationsKey,
-                this::getSessionKey);
+        this.expirationPolicy = createExpirationPolicy();
+        this.cleanupCoordinator = new SessionCleanupCoordinator(sessionRedisOperations, this::getCleanupLeaseKey,
+                this::getCleanupReportKey, this.nodeId);
         configureSessionChannels();
     }
 
+    /**
+     * Identifies this repository instance in invalidation messages and cleanup reports,
+     * as {@code pid@host} followed by a random suffix.
+     */
+    private static String createNodeId() {
+        String runtimeName = ManagementFactory.getRuntimeMXBean().getName().replace(':', '_');
+        return runtimeName + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    private SessionExpirationPolicy createExpirationPolicy() {
+        SessionExpirationPolicy policy;
+        if (this.expirationStrategy == SessionExpirationStrategy.SORTED_SET) {
+            policy = new SortedSetSessionExpirationPolicy(this.sessionRedisOperations, this::getExpirationsIndexKey,
+                    this::getSessionKey, this::handleReaped);
+        }
+        else {
+            policy = new RedisSessionExpirationPolicy(this.sessionRedisOperations, this::getExpirationsKey,
+                    this::getSessionKey, this::getExpiredKey, this::getExpirationsCleanupKey);
+        }
+        policy.setCleanupBatchSize(this.cleanupBatchSize);
+        return policy;
+    }
+
     /**
      * Sets the {@link ApplicationEventPublisher} that is used to publish
      * {@link SessionDestroyedEvent}. The default is to not publish a
@@ -139,9 +361,17 @@ public class CustomSIDRedisIndexedSessionRepository
         this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
     }
 
+    /**
+     * Sets the resolver of the indexes a session is found by. Besides the principal name
+     * index, a set of session ids is kept for the value of every other index it resolves,
+     * written with the session delta, see
+     * {@link #findByIndexNameAndIndexValue(String, String)}.
+     * @param indexResolver the index resolver
+     */
     public void setIndexResolver(IndexResolver<Session> indexResolver) {
         Objects.requireNonNull(indexResolver, "indexResolver cannot be null");
         this.indexResolver = indexResolver;
+        this.secondaryIndexes = true;
     }
 
     public void setDefaultSerializer(RedisSerializer<Object> defaultSerializer) {
@@ -149,6 +379,15 @@ public class CustomSIDRedisIndexedSessionRepository
         this.defaultSerializer = defaultSerializer;
     }
 
+    /**
+     * Returns the serializer of the session created messages, a
+     * {@link CompressingRedisSerializer} with its metrics when compression is enabled.
+     * @return the default serializer
+     */
+    public RedisSerializer<Object> getDefaultSerializer() {
+        return this.defaultSerializer;
+    }
+
     public void setFlushMode(FlushMode flushMode) {
         Objects.requireNonNull(flushMode, "flushMode cannot be null");
         this.flushMode = flushMode;
@@ -164,183 +403,1581 @@ public class CustomSIDRedisIndexedSessionRepository
         this.sessionIdGenerator = sessionIdGenerator;
     }
 
-    public void setDatabase(int database) {
-        this.database = database;
-        configureSessionChannels();
+    /**
+     * Sets whether the delta, the principal index update and the expiration bookkeeping
+     * of a session are sent to Redis as one pipelined batch. The key layout is the same
+     * in both modes, only the number of round trips per save differs. The default is
+     * {@code false}.
+     * @param pipelinedSave {@code true} to save each session in a single round trip
+     */
+    public void setPipelinedSave(boolean pipelinedSave) {
+        this.pipelinedSave = pipelinedSave;
     }
 
-    private void configureSessionChannels() {
-        this.sessionCreatedChannelPrefix = this.namespace + "event:" + this.database + ":created:";
-        this.sessionCreatedChannelPrefixBytes = this.sessionCreatedChannelPrefix.getBytes();
-        this.sessionDeletedChannel = "__keyevent@" + this.database + "__:del";
-        this.sessionDeletedChannelBytes = this.sessionDeletedChannel.getBytes();
-        this.sessionExpiredChannel = "__keyevent@" + this.database + "__:expired";
-        this.sessionExpiredChannelBytes = this.sessionExpiredChannel.getBytes();
-        this.expiredKeyPrefix = this.namespace + "sessions:expires:";
-        this.expiredKeyPrefixBytes = this.expiredKeyPrefix.getBytes();
+    /**
+     * Sets whether {@link #deleteById(String)} invalidates the session with a script,
+     * in one call and without reading the session first. The session is removed from the
+     * principal index and its {@link SessionDeletedEvent} is published when the keyspace
+     * notification of its expires key arrives. Only used with
+     * {@link SessionExpirationStrategy#MINUTE_BUCKETS}. The script only touches the
+     * session hash and its expires key, passed as keys, and leaves the id in its
+     * expiration bucket, where it is skipped once the expires key is gone. With
+     * {@link #setHashTaggedKeys(boolean)} it runs on Redis Cluster. Default is
+     * {@code false}.
+     * @param scriptedDelete whether to delete sessions with a script
+     */
+    public void setScriptedDelete(boolean scriptedDelete) {
+        this.scriptedDelete = scriptedDelete;
     }
 
-    public RedisOperations<Object, Object> getSessionRedisOperations() {
-        return this.sessionRedisOperations;
+    /**
+     * Sets whether the principal index of a principal is a sorted set of session ids
+     * scored by their last accessed time, rather than a set. Ids of sessions that no
+     * longer exist are removed when the index is read, and by a compaction that runs
+     * every {@value #PRINCIPAL_INDEX_COMPACTION_INTERVAL_MILLIS} milliseconds with the
+     * expired session cleanup, see {@link #compactPrincipalIndexes()}. The sorted
+     * indexes are stored under keys of their own, a set written before is moved into the
+     * sorted index the first time the principal is looked up. Default is {@code false}.
+     * @param sortedPrincipalIndex whether to keep the principal index sorted
+     */
+    public void setSortedPrincipalIndex(boolean sortedPrincipalIndex) {
+        this.sortedPrincipalIndex = sortedPrincipalIndex;
     }
 
-    @Override
-    public void save(RedisSession session) {
-        session.save();
-        if (session.isNew) {
-            String sessionCreatedKey = getSessionCreatedChannel(session.getId());
-            this.sessionRedisOperations.convertAndSend(sessionCreatedKey, session.delta);
-            session.isNew = false;
+    /**
+     * Sets the maximum number of sessions of a principal. When a session is added to the
+     * principal index beyond the maximum, the least recently used sessions of the
+     * principal are removed from the index by the same script, and then invalidated as
+     * by {@link #setScriptedDelete(boolean)}. Requires
+     * {@link #setSortedPrincipalIndex(boolean)}. Evicting several sessions at once
+     * touches keys of several sessions in one script, which Redis Cluster only accepts
+     * when they share a slot. Default is {@code 0}, no maximum.
+     * @param maxSessionsPerPrincipal the maximum number of sessions of a principal
+     */
+    public void setMaxSessionsPerPrincipal(int maxSessionsPerPrincipal) {
+        if (maxSessionsPerPrincipal < 0) {
+            throw new IllegalArgumentException("maxSessionsPerPrincipal must not be negative");
         }
+        this.maxSessionsPerPrincipal = maxSessionsPerPrincipal;
     }
 
-    public void cleanupExpiredSessions() {
-        this.expirationPolicy.cleanExpiredSessions();
+    /**
+     * Sets the in-process cache of recently loaded sessions consulted by
+     * {@link #findById(String)}. Saves that change attributes or the session id, and
+     * deletes, publish the session id on {@link #getSessionInvalidatedChannel()} so that
+     * the caches of other nodes drop their copies. A save that only touches the session
+     * refreshes the local copy and publishes nothing, a copy on another node that looks
+     * expired because of it is read again from Redis. The default is no cache.
+     * @param sessionCache the cache to use, or {@code null} to disable caching
+     */
+    public void setSessionCache(LocalSessionCache sessionCache) {
+        this.sessionCache = sessionCache;
     }
 
-    @Override
-    public RedisSession findById(String id) {
-        return getSession(id, false);
+    public LocalSessionCache getSessionCache() {
+        return this.sessionCache;
     }
 
-    @Override
-    public Map<String, RedisSession> findByIndexNameAndIndexValue(String indexName, String indexValue) {
-        if (!FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME.equals(indexName)) {
-            return Collections.emptyMap();
-        }
-        String principalKey = getPrincipalKey(indexValue);
-        Set<Object> sessionIds = this.sessionRedisOperations.boundSetOps(principalKey).members();
-        Map<String, RedisSession> sessions = new HashMap<>(sessionIds.size());
-        for (Object id : sessionIds) {
-            RedisSession session = findById((String) id);
-            if (session != null) {
-                sessions.put(session.getId(), session);
-            }
+    /**
+     * Sets how many members of an expiration bucket are scanned and touched per round trip
+     * by {@link #cleanupExpiredSessions()}.
+     * @param cleanupBatchSize the batch size, must be positive
+     */
+    public void setCleanupBatchSize(int cleanupBatchSize) {
+        this.expirationPolicy.setCleanupBatchSize(cleanupBatchSize);
+        this.cleanupBatchSize = cleanupBatchSize;
+    }
+
+    /**
+     * Sets how session expiration is tracked. The default is
+     * {@link SessionExpirationStrategy#MINUTE_BUCKETS}. Switching strategies on a
+     * populated Redis leaves the sessions tracked by the other strategy to Redis' own key
+     * expiration.
+     * @param expirationStrategy the strategy to use
+     */
+    public void setExpirationStrategy(SessionExpirationStrategy expirationStrategy) {
+        Objects.requireNonNull(expirationStrategy, "expirationStrategy cannot be null");
+        this.expirationStrategy = expirationStrategy;
+        this.expirationPolicy = createExpirationPolicy();
+    }
+
+    /**
+     * Sets whether the cleanup is run by a single node elected through a lease in Redis.
+     * Default is {@code true}.
+     * @param cleanupCoordinated whether to coordinate the cleanup across nodes
+     */
+    public void setCleanupCoordinated(boolean cleanupCoordinated) {
+        this.cleanupCoordinated = cleanupCoordinated;
+    }
+
+    /**
+     * Sets the interval between two runs of the cleanup, which is how long the lease of
+     * each run is held. Must match the cleanup cron. Default is one minute.
+     * @param cleanupLeaseTime the lease time, must be positive
+     */
+    public void setCleanupLeaseTime(Duration cleanupLeaseTime) {
+        this.cleanupCoordinator.setLeaseTime(cleanupLeaseTime);
+    }
+
+    /**
+     * Sets how far the last accessed time of a session has to move before a touch is
+     * written to Redis. A touch within the granularity that does not move the session to
+     * another expiration bucket is kept in memory only, and a save with nothing else to
+     * write is skipped. Such a session may expire up to the granularity earlier than its
+     * in-memory last accessed time says. Default is {@link Duration#ZERO}, which writes
+     * every touch.
+     * @param touchGranularity the touch granularity
+     */
+    public void setTouchGranularity(Duration touchGranularity) {
+        Objects.requireNonNull(touchGranularity, "touchGranularity cannot be null");
+        this.touchGranularity = touchGranularity;
+    }
+
+    /**
+     * Sets whether session keys carry the session id in a hash tag, as in
+     * {@code sessions:{id}} and {@code sessions:expires:{id}}, so that a session hash and
+     * its expires key land on the same Redis Cluster slot. The principal index and the
+     * expiration buckets are shared by many sessions and keep their keys. Default is
+     * {@code false}.
+     * @param hashTaggedKeys whether to use the hash tagged key layout
+     */
+    public void setHashTaggedKeys(boolean hashTaggedKeys) {
+        this.hashTaggedKeys = hashTaggedKeys;
+    }
+
+    /**
+     * Sets whether, with {@link #setHashTaggedKeys(boolean) hash tagged keys}, sessions
+     * not found under their hash tagged key are looked up under the untagged key. A
+     * session found there is written in full to the hash tagged layout on its next save,
+     * the untagged keys are left to expire. Default is {@code true}.
+     * @param legacyKeyFallback whether to fall back to the untagged key layout
+     */
+    public void setLegacyKeyFallback(boolean legacyKeyFallback) {
+        this.legacyKeyFallback = legacyKeyFallback;
+    }
+
+    /**
+     * Sets what is published when a new session is saved for the first time. Default is
+     * {@link SessionCreatedEventMode#FULL}. {@link SessionCreatedEventMode#AUTO} is
+     * resolved by the configuration and is not accepted here.
+     * @param sessionCreatedEventMode the session created event mode
+     */
+    public void setSessionCreatedEventMode(SessionCreatedEventMode sessionCreatedEventMode) {
+        Objects.requireNonNull(sessionCreatedEventMode, "sessionCreatedEventMode cannot be null");
+        if (sessionCreatedEventMode == SessionCreatedEventMode.AUTO) {
+            throw new IllegalArgumentException("sessionCreatedEventMode must be resolved before it is set");
         }
-        return sessions;
+        this.sessionCreatedEventMode = sessionCreatedEventMode;
     }
 
-    private RedisSession getSession(String id, boolean allowExpired) {
-        Map<Object, Object> entries = getSessionBoundHashOperations(id).entries();
-        if (entries.isEmpty()) {
-            return null;
+    public SessionCreatedEventMode getSessionCreatedEventMode() {
+        return this.sessionCreatedEventMode;
+    }
+
+    /**
+     * Sets the names of the attributes stored outside of the session hash, each under its
+     * own key with the time to live of the session. A loaded session only knows that
+     * such an attribute exists, its value is read the first time
+     * {@link RedisSession#getAttribute(String)} asks for it, and written again only when
+     * it is set or removed. This keeps rarely used large attributes out of every
+     * {@link #findById(String)}. Saves of sessions with detached attributes are
+     * pipelined, as with {@link #setPipelinedSave(boolean)}, and the keys get a new time
+     * to live only when the expiration minute of the session moves. Sessions read by
+     * repositories that do not know the layout miss these attributes. Default is none.
+     * @param detachedAttributes the names of the detached attributes
+     */
+    public void setDetachedAttributes(Collection<String> detachedAttributes) {
+        Objects.requireNonNull(detachedAttributes, "detachedAttributes cannot be null");
+        this.detachedAttributes = Collections.unmodifiableSet(new HashSet<>(detachedAttributes));
+    }
+
+    public Set<String> getDetachedAttributes() {
+        return this.detachedAttributes;
+    }
+
+    /**
+     * Sets up asynchronous processing of the session destroyed keyspace events. The
+     * events are handled by the given number of worker threads, in batches whose sessions
+     * are loaded in one pipelined round trip, while the events of one session keep their
+     * order. When the bounded queue is full the Redis listener thread blocks. A value of
+     * {@code 0} threads, the default, handles the events on the listener thread.
+     * @param threads the number of worker threads
+     * @param queueCapacity the maximum number of queued events
+     */
+    public void setAsyncEventProcessing(int threads, int queueCapacity) {
+        if (this.eventProcessor != null) {
+            this.eventProcessor.shutdown();
+            this.eventProcessor = null;
         }
-        MapSession loaded = loadSession(id, entries);
-        if (!allowExpired && loaded.isExpired()) {
-            return null;
+        if (threads > 0) {
+            this.eventProcessor = new SessionEventProcessor(threads, queueCapacity, DEFAULT_EVENT_BATCH_SIZE,
+                    this::handleDestroyed);
         }
-        RedisSession result = new RedisSession(loaded, false);
-        result.originalLastAccessTime = loaded.getLastAccessedTime();
-        return result;
     }
 
-    private MapSession loadSession(String id, Map<Object, Object> entries) {
-        MapSession loaded = new MapSession(id);
-        for (Map.Entry<Object, Object> entry : entries.entrySet()) {
-            String key = (String) entry.getKey();
-            if (RedisSessionMapper.CREATION_TIME_KEY.equals(key)) {
-                loaded.setCreationTime(Instant.ofEpochMilli((long) entry.getValue()));
-            }
-            else if (RedisSessionMapper.MAX_INACTIVE_INTERVAL_KEY.equals(key)) {
-                loaded.setMaxInactiveInterval(Duration.ofSeconds((int) entry.getValue()));
-            }
-            else if (RedisSessionMapper.LAST_ACCESSED_TIME_KEY.equals(key)) {
-                loaded.setLastAccessedTime(Instant.ofEpochMilli((long) entry.getValue()));
-            }
-            else if (key.startsWith(RedisSessionMapper.ATTRIBUTE_PREFIX)) {
-                loaded.setAttribute(key.substring(RedisSessionMapper.ATTRIBUTE_PREFIX.length()), entry.getValue());
-            }
+    /**
+     * Sets up write-behind saves. {@link #save(RedisSession)} of a session that exists in
+     * Redis only hands its changes to a flusher, which merges the changes of consecutive
+     * saves of the same session and writes them in batches at most the given interval
+     * later. Each batch is a transaction watching the session hashes, which drops the
+     * changes of sessions deleted meanwhile. {@link #findById(String)} on this node sees
+     * the changes not written yet. New sessions, session id changes and deletes are
+     * written right away, after the changes of the session waiting to be written. Pending
+     * changes are written on {@link #destroy()}, changes still not written when a node
+     * dies are lost. Applies to {@link FlushMode#ON_SAVE} only. Transactions do not run
+     * on Redis Cluster.
+     * @param flushInterval the longest changes wait before they are written
+     * @param maxPending the number of sessions waiting to be written from which saves
+     * are written by the request thread again
+     */
+    public void setWriteBehind(Duration flushInterval, int maxPending) {
+        if (this.writeBehindFlusher != null) {
+            this.writeBehindFlusher.shutdown();
         }
-        return loaded;
+        this.writeBehindFlusher = new SessionWriteBehindFlusher<>(flushInterval, WRITE_BEHIND_BATCH_SIZE, maxPending,
+                RedisSession::mergedWith, this::writeBehind);
     }
 
-    @Override
-    public void deleteById(String sessionId) {
-        RedisSession session = getSession(sessionId, true);
-        if (session == null) {
-            return;
+    /**
+     * Puts the Redis calls of {@link #findById(String)}, {@link #save(RedisSession)} and
+     * {@link #deleteById(String)} behind a {@link SessionCircuitBreaker}. While it is
+     * open, or when a call fails, sessions are read from copies of the recently used
+     * sessions kept on this node, and saves and deletes are queued locally. The queued
+     * writes are replayed, by a single background thread, once calls to Redis succeed
+     * again. A write whose replay fails for a reason other than Redis is dropped. A
+     * session that was only used on another node is not found while the breaker is open.
+     * @param failureThreshold the number of consecutive failed or slow calls that opens
+     * the breaker
+     * @param slowCallThreshold the duration from which a call counts as failed
+     * @param openDuration how long the breaker stays open before it tries Redis again
+     * @param maxLocalSessions the maximum number of sessions kept locally and of writes
+     * queued
+     */
+    public void setCircuitBreaker(int failureThreshold, Duration slowCallThreshold, Duration openDuration,
+                                  int maxLocalSessions) {
+        this.circuitBreaker = new SessionCircuitBreaker(failureThreshold, slowCallThreshold, openDuration);
+        this.degradedStore = new DegradedSessionStore<>(maxLocalSessions, RedisSession::mergedWith,
+                RedisSession::getStoredSession, this::replay);
+        if (this.reconciler == null) {
+            this.reconciler = Executors.newSingleThreadExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "session-reconciler");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
+    }
 
-        cleanupPrincipalIndex(session);
-        this.expirationPolicy.onDelete(session);
-
-        String expireKey = getExpiredKey(session.getId());
-        this.sessionRedisOperations.delete(expireKey);
+    public SessionCircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
 
-        session.setMaxInactiveInterval(Duration.ZERO);
-        save(session);
+    /**
+     * @return the number of session reads served locally instead of from Redis
+     */
+    public long getDegradedReadCount() {
+        return this.degradedReadCount.sum();
     }
 
-    @Override
-    public RedisSession createSession() {
-        MapSession cached = new MapSession(sessionIdGenerator.generate());
-        if (this.defaultMaxInactiveInterval != null) {
-            cached.setMaxInactiveInterval(Duration.ofSeconds(this.defaultMaxInactiveInterval));
-        }
-        RedisSession session = new RedisSession(cached, true);
-        session.flushImmediateIfNecessary();
-        return session;
+    /**
+     * @return the number of saves and deletes waiting to be replayed to Redis
+     */
+    public int getDegradedWritePendingCount() {
+        return (this.degradedStore != null) ? this.degradedStore.getQueuedSize() : 0;
     }
 
-    @Override
-    public void onMessage(Message message, byte[] pattern) {
-        byte[] messageChannel = message.getChannel();
+    /**
+     * @return the number of saves and deletes replayed to Redis
+     */
+    public long getDegradedWriteReplayedCount() {
+        return (this.degradedStore != null) ? this.degradedStore.getReplayedCount() : 0;
+    }
 
-        if (ByteUtils.startsWith(messageChannel, this.sessionCreatedChannelPrefixBytes)) {
-            // TODO: is this thread safe?
-            @SuppressWarnings("unchecked")
-            Map<Object, Object> loaded = (Map<Object, Object>) this.defaultSerializer.deserialize(message.getBody());
-            handleCreated(loaded, new String(messageChannel));
-            return;
-        }
+    /**
+     * @return the number of saves and deletes lost because too many were queued, or
+     * because replaying them failed for a reason other than Redis
+     */
+    public long getDegradedWriteDroppedCount() {
+        return (this.degradedStore != null) ? this.degradedStore.getDroppedCount() : 0;
+    }
 
-        byte[] messageBody = message.getBody();
+    /**
+     * @return the number of sessions whose changes wait to be written
+     */
+    public int getWriteBehindPendingCount() {
+        return (this.writeBehindFlusher != null) ? this.writeBehindFlusher.getPendingCount() : 0;
+    }
 
-        if (!ByteUtils.startsWith(messageBody, this.expiredKeyPrefixBytes)) {
-            return;
-        }
+    /**
+     * @return the number of saves merged into an earlier save not written yet
+     */
+    public long getWriteBehindMergedCount() {
+        return (this.writeBehindFlusher != null) ? this.writeBehindFlusher.getMergedCount() : 0;
+    }
 
-        boolean isDeleted = Arrays.equals(messageChannel, this.sessionDeletedChannelBytes);
-        if (isDeleted || Arrays.equals(messageChannel, this.sessionExpiredChannelBytes)) {
-            String body = new String(messageBody);
-            int beginIndex = body.lastIndexOf(":") + 1;
-            int endIndex = body.length();
-            String sessionId = body.substring(beginIndex, endIndex);
+    /**
+     * @return the number of write-behind saves that failed and were dropped
+     */
+    public long getWriteBehindFailedCount() {
+        return (this.writeBehindFlusher != null) ? this.writeBehindFlusher.getFailedCount() : 0;
+    }
 
-            RedisSession session = getSession(sessionId, true);
+    /**
+     * @return the number of destroyed events waiting to be processed
+     */
+    public int getEventQueueDepth() {
+        return (this.eventProcessor != null) ? this.eventProcessor.getQueueDepth() : 0;
+    }
 
-            if (session == null) {
-                log.warn("Unable to publish SessionDestroyedEvent for session " + sessionId);
-                return;
-            }
+    /**
+     * @return how long the oldest waiting destroyed event has been queued, in milliseconds
+     */
+    public long getEventQueueLagInMillis() {
+        return (this.eventProcessor != null) ? this.eventProcessor.getQueueLagInMillis() : 0;
+    }
 
-            if (log.isDebugEnabled()) {
-                log.debug("Publishing SessionDestroyedEvent for session " + sessionId);
-            }
+    /**
+     * @return how long the last processed destroyed event waited, in milliseconds
+     */
+    public long getEventLastLagInMillis() {
+        return (this.eventProcessor != null) ? this.eventProcessor.getLastLagInMillis() : 0;
+    }
 
-            cleanupPrincipalIndex(session);
+    public long getProcessedEventCount() {
+        return (this.eventProcessor != null) ? this.eventProcessor.getProcessedCount() : 0;
+    }
 
-            if (isDeleted) {
-                handleDeleted(session);
+    @Override
+    public void destroy() {
+        if (this.writeBehindFlusher != null) {
+            this.writeBehindFlusher.shutdown();
+        }
+        if (this.reconciler != null) {
+            this.reconciler.shutdown();
+            try {
+                this.reconciler.awaitTermination(10, TimeUnit.SECONDS);
             }
-            else {
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (this.degradedStore != null && this.degradedStore.getQueuedSize() > 0) {
+            this.degradedStore.reconcile();
+        }
+        if (this.eventProcessor != null) {
+            this.eventProcessor.shutdown();
+        }
+    }
+
+    /**
+     * Records in Redis the storage features this repository uses, so that a
+     * {@link CustomSIDReactiveRedisSessionRepository} sharing the sessions can refuse to
+     * start when it cannot read them. Features are only ever added, the layout key has to
+     * be deleted once a feature is turned off on all the nodes.
+     */
+    public void publishLayout() {
+        List<String> features = new ArrayList<>(4);
+        if (this.expirationStrategy == SessionExpirationStrategy.SORTED_SET) {
+            features.add(LAYOUT_SORTED_SET_EXPIRATION);
+        }
+        if (this.sortedPrincipalIndex) {
+            features.add(LAYOUT_SORTED_PRINCIPAL_INDEX);
+        }
+        if (this.secondaryIndexes) {
+            features.add(LAYOUT_SECONDARY_INDEXES);
+        }
+        if (!this.detachedAttributes.isEmpty()) {
+            features.add(LAYOUT_DETACHED_ATTRIBUTES);
+        }
+        if (features.isEmpty()) {
+            return;
+        }
+        byte[] layoutKey = toBytes(getLayoutKey());
+        byte[][] members = new byte[features.size()][];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = toBytes(features.get(i));
+        }
+        this.sessionRedisOperations.execute((RedisCallback<Long>) (connection) -> connection.sAdd(layoutKey, members));
+    }
+
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    public SessionExpirationStrategy getExpirationStrategy() {
+        return this.expirationStrategy;
+    }
+
+    private boolean isKeyspaceExpiration() {
+        return this.expirationStrategy == SessionExpirationStrategy.MINUTE_BUCKETS;
+    }
+
+    public void setDatabase(int database) {
+        this.database = database;
+        configureSessionChannels();
+    }
+
+    private void configureSessionChannels() {
+        this.sessionCreatedChannelPrefix = this.namespace + "event:" + this.database + ":created:";
+        this.sessionCreatedChannelPrefixBytes = this.sessionCreatedChannelPrefix.getBytes();
+        this.sessionDeletedChannel = "__keyevent@" + this.database + "__:del";
+        this.sessionDeletedChannelBytes = this.sessionDeletedChannel.getBytes();
+        this.sessionExpiredChannel = "__keyevent@" + this.database + "__:expired";
+        this.sessionExpiredChannelBytes = this.sessionExpiredChannel.getBytes();
+        this.sessionInvalidatedChannel = this.namespace + "event:" + this.database + ":invalidated";
+        this.sessionInvalidatedChannelBytes = this.sessionInvalidatedChannel.getBytes();
+        this.expiredKeyPrefix = this.namespace + "sessions:expires:";
+        this.expiredKeyPrefixBytes = this.expiredKeyPrefix.getBytes();
+    }
+
+    public RedisOperations<Object, Object> getSessionRedisOperations() {
+        return this.sessionRedisOperations;
+    }
+
+    @Override
+    public void save(RedisSession session) {
+        if (this.circuitBreaker == null) {
+            doSave(session);
+            return;
+        }
+        if (!this.circuitBreaker.tryAcquire()) {
+            queueDegradedSave(session);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            this.degradedStore.replay(session.originalSessionId);
+            doSave(session);
+        }
+        catch (DataAccessException ex) {
+            this.circuitBreaker.onFailure();
+            log.warn("Error saving session " + session.getId() + ", queued locally.", ex);
+            queueDegradedSave(session);
+            return;
+        }
+        catch (RuntimeException | Error ex) {
+            this.circuitBreaker.onIgnored();
+            throw ex;
+        }
+        onRedisCallSucceeded(start);
+        this.degradedStore.remember(session.getId(), session.getStoredSession());
+    }
+
+    private void queueDegradedSave(RedisSession session) {
+        if (!session.isNew && session.getId().equals(session.originalSessionId) && session.delta.isEmpty()) {
+            return;
+        }
+        String originalSessionId = session.originalSessionId;
+        if (!this.degradedStore.queue(originalSessionId, session.getId(), session.detach())) {
+            log.warn("Too many session writes queued locally, dropped the save of session " + session.getId());
+        }
+    }
+
+    private void onRedisCallSucceeded(long start) {
+        boolean closed = this.circuitBreaker.onSuccess(System.nanoTime() - start);
+        if ((closed || this.degradedStore.getQueuedSize() > 0) && !this.degradedStore.isReconciling()
+                && this.reconcileScheduled.compareAndSet(false, true)) {
+            try {
+                this.reconciler.execute(() -> {
+                    this.reconcileScheduled.set(false);
+                    if (!this.degradedStore.reconcile()) {
+                        this.circuitBreaker.onFailure();
+                    }
+                });
+            }
+            catch (RejectedExecutionException ex) {
+                // shut down
+                this.reconcileScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes a save or delete queued while Redis was unavailable.
+     */
+    private void replay(String sessionId, RedisSession session) {
+        if (session == null) {
+            doDeleteById(sessionId);
+        }
+        else {
+            doSave(session);
+        }
+    }
+
+    private void doSave(RedisSession session) {
+        if (this.writeBehindFlusher != null) {
+            if (session.isWriteBehind()) {
+                if (!session.delta.isEmpty()) {
+                    this.writeBehindFlusher.submit(session.getId(), session.detach());
+                }
+                return;
+            }
+            this.writeBehindFlusher.flush(session.originalSessionId);
+        }
+        session.save();
+        if (session.isNew) {
+            publishCreated(session);
+            session.isNew = false;
+        }
+    }
+
+    /**
+     * Writes the changes of sessions handed over by write-behind saves in one
+     * transaction. If another client changed one of the sessions meanwhile, they are
+     * written one at a time instead.
+     */
+    private void writeBehind(List<RedisSession> sessions) {
+        for (RedisSession session : sessions) {
+            session.addPendingTouch();
+        }
+        if (writeBehindTransaction(sessions)) {
+            return;
+        }
+        for (RedisSession session : sessions) {
+            int attempts = 1;
+            while (!writeBehindTransaction(Collections.singletonList(session))) {
+                if (++attempts > WRITE_BEHIND_MAX_ATTEMPTS) {
+                    log.warn("Dropped the write-behind save of session " + session.getId()
+                            + ", it kept changing while written");
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the changes of sessions in a transaction watching their hashes. Sessions
+     * whose hash is gone or was marked expired, because they were deleted since they
+     * were saved, are skipped, so that the write does not bring back their expiration
+     * keys and index entries. The sessions are written through copies, which leaves
+     * them untouched when the transaction is discarded.
+     * @return {@code false} if a session changed before the transaction ran and nothing
+     * was written
+     */
+    private boolean writeBehindTransaction(List<RedisSession> sessions) {
+        List<RedisSession> written = new ArrayList<>(sessions.size());
+        List<Boolean> contentChanged = new ArrayList<>(sessions.size());
+        Boolean committed = this.sessionRedisOperations.execute(new SessionCallback<Boolean>() {
+            @Override
+            public <K, V> Boolean execute(RedisOperations<K, V> operations) {
+                RedisOperations<Object, Object> redis = CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations;
+                List<Object> keys = new ArrayList<>(sessions.size());
+                for (RedisSession session : sessions) {
+                    keys.add(getSessionKey(session.getId()));
+                }
+                redis.watch(keys);
+                List<?> live = redis.execute(LIVE_SESSIONS, RedisSerializer.byteArray(), null, keys,
+                        serializeHashKey(RedisSessionMapper.MAX_INACTIVE_INTERVAL_KEY), serializeHashValue(0));
+                for (int i = 0; i < sessions.size(); i++) {
+                    Object result = (live != null && i < live.size()) ? live.get(i) : null;
+                    if ((result instanceof Long) && (Long) result == 1L) {
+                        written.add(sessions.get(i).copy());
+                        contentChanged.add(sessions.get(i).hasAttributesInDelta());
+                    }
+                    else if (log.isDebugEnabled()) {
+                        log.debug("Dropped the write-behind save of deleted session " + sessions.get(i).getId());
+                    }
+                }
+                if (written.isEmpty()) {
+                    redis.unwatch();
+                    return true;
+                }
+                for (RedisSession session : written) {
+                    session.resolveIndexesForSave();
+                }
+                redis.multi();
+                for (RedisSession session : written) {
+                    session.doSaveDelta();
+                }
+                List<Object> results = redis.exec();
+                return results != null && !results.isEmpty();
+            }
+        });
+        if (committed == null || !committed) {
+            return false;
+        }
+        for (int i = 0; i < written.size(); i++) {
+            RedisSession session = written.get(i);
+            session.savePrincipalIndex();
+            session.updateCachedSession(session.getId(), contentChanged.get(i));
+        }
+        return true;
+    }
+
+    private void flushWriteBehind(String sessionId) {
+        if (this.writeBehindFlusher != null) {
+            this.writeBehindFlusher.flush(sessionId);
+        }
+    }
+
+    private void publishCreated(RedisSession session) {
+        String sessionCreatedKey = getSessionCreatedChannel(session.getId());
+        switch (this.sessionCreatedEventMode) {
+            case FULL:
+                this.sessionRedisOperations.convertAndSend(sessionCreatedKey, session.delta);
+                break;
+            case LIGHTWEIGHT:
+                Map<Object, Object> times = new HashMap<>(4);
+                times.put(RedisSessionMapper.CREATION_TIME_KEY, session.getCreationTime().toEpochMilli());
+                times.put(RedisSessionMapper.LAST_ACCESSED_TIME_KEY, session.getLastAccessedTime().toEpochMilli());
+                times.put(RedisSessionMapper.MAX_INACTIVE_INTERVAL_KEY,
+                        (int) session.getMaxInactiveInterval().getSeconds());
+                this.sessionRedisOperations.convertAndSend(sessionCreatedKey, times);
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Cleans up expired sessions. Unless coordination was turned off with
+     * {@link #setCleanupCoordinated(boolean)}, only the node holding the cleanup lease
+     * runs it, the other nodes return immediately.
+     */
+    public void cleanupExpiredSessions() {
+        if (!this.cleanupCoordinated) {
+            cleanup();
+            return;
+        }
+        this.cleanupCoordinator.runIfLeader(this::cleanup);
+    }
+
+    private void cleanup() {
+        this.expirationPolicy.cleanExpiredSessions();
+        long now = System.currentTimeMillis();
+        if (this.sortedPrincipalIndex && now - this.lastPrincipalIndexCompaction >= PRINCIPAL_INDEX_COMPACTION_INTERVAL_MILLIS) {
+            this.lastPrincipalIndexCompaction = now;
+            compactPrincipalIndexes();
+        }
+    }
+
+    /**
+     * Removes the ids of sessions that no longer exist from the sorted principal indexes.
+     * Only ids not scored within the default max inactive interval are checked, a batch
+     * of {@value #PRINCIPAL_INDEX_COMPACTION_BATCH_SIZE} per index and round trip. The
+     * indexes are found with SCAN, which does not run on Redis Cluster.
+     * @return the number of ids removed
+     */
+    public long compactPrincipalIndexes() {
+        ScanOptions options = ScanOptions.scanOptions()
+                .match(getSortedPrincipalKey("*"))
+                .count(PRINCIPAL_INDEX_COMPACTION_BATCH_SIZE)
+                .build();
+        List<byte[]> principalKeys = new ArrayList<>();
+        this.sessionRedisOperations.execute((RedisCallback<Object>) (connection) -> {
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                cursor.forEachRemaining(principalKeys::add);
+            }
+            return null;
+        });
+        int maxInactiveInterval = (this.defaultMaxInactiveInterval != null) ? this.defaultMaxInactiveInterval
+                : MapSession.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS;
+        double maxScore = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(maxInactiveInterval);
+        long removed = 0;
+        for (byte[] principalKey : principalKeys) {
+            removed += compactPrincipalIndex(principalKey, maxScore);
+        }
+        if (removed > 0) {
+            log.info("Removed " + removed + " dead session ids from " + principalKeys.size() + " principal indexes");
+        }
+        return removed;
+    }
+
+    private long compactPrincipalIndex(byte[] principalKey, double maxScore) {
+        long removed = 0;
+        for (long offset = 0; ; ) {
+            long from = offset;
+            Set<byte[]> candidates = this.sessionRedisOperations.execute((RedisCallback<Set<byte[]>>) (connection) ->
+                    connection.zRangeByScore(principalKey, Double.NEGATIVE_INFINITY, maxScore, from,
+                            PRINCIPAL_INDEX_COMPACTION_BATCH_SIZE));
+            if (candidates == null || candidates.isEmpty()) {
+                return removed;
+            }
+            List<String> ids = new ArrayList<>(candidates.size());
+            for (byte[] candidate : candidates) {
+                ids.add(new String(candidate, StandardCharsets.UTF_8));
+            }
+            List<byte[]> dead = new ArrayList<>();
+            List<Object> exists = this.sessionRedisOperations.executePipelined((RedisCallback<Object>) (connection) -> {
+                for (String id : ids) {
+                    connection.exists(toBytes(getSessionKey(id)));
+                }
+                return null;
+            });
+            for (int i = 0; i < ids.size(); i++) {
+                if (!Boolean.TRUE.equals(exists.get(i))) {
+                    dead.add(toBytes(ids.get(i)));
+                }
+            }
+            if (!dead.isEmpty()) {
+                this.sessionRedisOperations.execute((RedisCallback<Long>) (connection) ->
+                        connection.zRem(principalKey, dead.toArray(new byte[0][])));
+                removed += dead.size();
+            }
+            if (candidates.size() < PRINCIPAL_INDEX_COMPACTION_BATCH_SIZE) {
+                return removed;
+            }
+            offset += candidates.size() - dead.size();
+        }
+    }
+
+    /**
+     * Returns the outcome of the last coordinated cleanup run on any node.
+     * @return the last cleanup report, or {@code null} if no run was recorded yet
+     */
+    public SessionCleanupReport getLastCleanupReport() {
+        return this.cleanupCoordinator.getLastReport();
+    }
+
+    @Override
+    public RedisSession findById(String id) {
+        return getSession(id, false);
+    }
+
+    @Override
+    public Map<String, RedisSession> findByIndexNameAndIndexValue(String indexName, String indexValue) {
+        if (!FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME.equals(indexName)) {
+            return findBySecondaryIndex(indexName, indexValue);
+        }
+        List<String> ids = getPrincipalSessionIds(indexValue);
+        if (ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, RedisSession> sessions = findByIds(ids);
+        if (this.sortedPrincipalIndex && sessions.size() < ids.size()) {
+            List<byte[]> dead = new ArrayList<>(ids.size() - sessions.size());
+            for (String id : ids) {
+                if (!sessions.containsKey(id)) {
+                    dead.add(toBytes(id));
+                }
+            }
+            byte[] principalKey = toBytes(getSortedPrincipalKey(indexValue));
+            this.sessionRedisOperations.execute((RedisCallback<Long>) (connection) ->
+                    connection.zRem(principalKey, dead.toArray(new byte[0][])));
+        }
+        return sessions;
+    }
+
+    /**
+     * Finds the sessions in the set of a secondary index value with one pipelined read,
+     * and removes the ids of the sessions not found from the set.
+     */
+    private Map<String, RedisSession> findBySecondaryIndex(String indexName, String indexValue) {
+        String indexKey = getIndexKey(indexName, indexValue);
+        Set<Object> members = this.sessionRedisOperations.boundSetOps(indexKey).members();
+        if (members == null || members.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<String> ids = new ArrayList<>(members.size());
+        for (Object member : members) {
+            ids.add((String) member);
+        }
+        Map<String, RedisSession> sessions = findByIds(ids);
+        if (sessions.size() < ids.size()) {
+            List<Object> dead = new ArrayList<>(ids.size() - sessions.size());
+            for (String id : ids) {
+                if (!sessions.containsKey(id)) {
+                    dead.add(id);
+                }
+            }
+            this.sessionRedisOperations.boundSetOps(indexKey).remove(dead.toArray());
+        }
+        return sessions;
+    }
+
+    /**
+     * Returns the ids in the principal index of a principal. With a sorted principal
+     * index, a set written before is moved into it, scored as least recently used.
+     */
+    private List<String> getPrincipalSessionIds(String principalName) {
+        String principalKey = getPrincipalKey(principalName);
+        Set<Object> members = this.sessionRedisOperations.boundSetOps(principalKey).members();
+        List<String> ids = new ArrayList<>();
+        if (members != null) {
+            for (Object member : members) {
+                ids.add((String) member);
+            }
+        }
+        if (!this.sortedPrincipalIndex) {
+            return ids;
+        }
+        String sortedPrincipalKey = getSortedPrincipalKey(principalName);
+        List<?> sorted;
+        if (ids.isEmpty()) {
+            byte[] key = toBytes(sortedPrincipalKey);
+            sorted = this.sessionRedisOperations.execute((RedisCallback<List<?>>) (connection) -> {
+                Set<byte[]> range = connection.zRange(key, 0, -1);
+                return (range != null) ? new ArrayList<>(range) : null;
+            });
+        }
+        else {
+            // a node not using the sorted index may add to the set meanwhile, the move is atomic
+            List<byte[]> args = new ArrayList<>(ids.size() * 2);
+            for (String id : ids) {
+                args.add(serializeValue(id));
+                args.add(toBytes(id));
+            }
+            sorted = this.sessionRedisOperations.execute(MIGRATE_PRINCIPAL_INDEX, RedisSerializer.byteArray(), null,
+                    Arrays.asList(principalKey, sortedPrincipalKey), args.toArray());
+        }
+        ids.clear();
+        if (sorted != null) {
+            for (Object id : sorted) {
+                ids.add(new String((byte[]) id, StandardCharsets.UTF_8));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Adds a session to the principal index of a principal, evicting the least recently
+     * used sessions of the principal beyond {@link #setMaxSessionsPerPrincipal(int)}.
+     */
+    private void addToPrincipalIndex(String principalName, String sessionId, Instant lastAccessedTime) {
+        if (!this.sortedPrincipalIndex) {
+            this.sessionRedisOperations.boundSetOps(getPrincipalKey(principalName)).add(sessionId);
+            return;
+        }
+        List<?> evicted = this.sessionRedisOperations.execute(INDEX_PRINCIPAL, RedisSerializer.byteArray(), null,
+                Collections.singletonList(getSortedPrincipalKey(principalName)), toBytes(sessionId),
+                toBytes(String.valueOf(lastAccessedTime.toEpochMilli())),
+                toBytes(String.valueOf(this.maxSessionsPerPrincipal)));
+        if (evicted == null || evicted.isEmpty()) {
+            return;
+        }
+        List<String> evictedIds = new ArrayList<>(evicted.size());
+        for (Object id : evicted) {
+            evictedIds.add(new String((byte[]) id, StandardCharsets.UTF_8));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Evicted sessions " + evictedIds + " of principal " + principalName);
+        }
+        invalidate(evictedIds, null);
+        if (!isKeyspaceExpiration()) {
+            for (String evictedId : evictedIds) {
+                this.sessionRedisOperations.opsForZSet().add(getExpirationsIndexKey(), evictedId, 0);
+            }
+        }
+    }
+
+    private void removeFromPrincipalIndex(String principalName, String sessionId) {
+        if (this.sortedPrincipalIndex) {
+            byte[] principalKey = toBytes(getSortedPrincipalKey(principalName));
+            this.sessionRedisOperations.execute((RedisCallback<Long>) (connection) ->
+                    connection.zRem(principalKey, toBytes(sessionId)));
+        }
+        else {
+            this.sessionRedisOperations.boundSetOps(getPrincipalKey(principalName)).remove(sessionId);
+        }
+    }
+
+    /**
+     * Moves a session up in the sorted principal index of a principal.
+     */
+    private void touchPrincipalIndex(String principalName, String sessionId, Instant lastAccessedTime) {
+        byte[] principalKey = toBytes(getSortedPrincipalKey(principalName));
+        this.sessionRedisOperations.execute((RedisCallback<Boolean>) (connection) ->
+                connection.zAdd(principalKey, lastAccessedTime.toEpochMilli(), toBytes(sessionId)));
+    }
+
+    /**
+     * Finds the sessions with the given ids, reading all the session hashes that are not
+     * cached locally in one pipelined round trip. Ids of sessions that do not exist or are
+     * expired are not present in the result.
+     * @param ids the session ids to look up
+     * @return the found sessions by id
+     */
+    public Map<String, RedisSession> findByIds(Collection<String> ids) {
+        Map<String, RedisSession> sessions = new HashMap<>(ids.size());
+        List<String> idsToLoad = new ArrayList<>(ids.size());
+        for (String id : new LinkedHashSet<>(ids)) {
+            MapSession cached = (this.sessionCache != null) ? this.sessionCache.get(id) : null;
+            if (cached == null) {
+                idsToLoad.add(id);
+            }
+            else if (!cached.isExpired()) {
+                sessions.put(id, toRedisSession(cached));
+            }
+        }
+        if (idsToLoad.isEmpty()) {
+            return sessions;
+        }
+        List<Map<byte[], byte[]>> loaded = getRawSessionEntries(getSessionKeys(idsToLoad));
+        boolean[] legacy = new boolean[idsToLoad.size()];
+        if (isLegacyKeyFallback()) {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < idsToLoad.size(); i++) {
+                if (loaded.get(i).isEmpty()) {
+                    missing.add(i);
+                }
+            }
+            List<String> legacyKeys = new ArrayList<>(missing.size());
+            for (int i : missing) {
+                legacyKeys.add(getLegacySessionKey(idsToLoad.get(i)));
+            }
+            List<Map<byte[], byte[]>> legacyLoaded = getRawSessionEntries(legacyKeys);
+            for (int j = 0; j < missing.size(); j++) {
+                loaded.set(missing.get(j), legacyLoaded.get(j));
+                legacy[missing.get(j)] = true;
+            }
+        }
+        for (int i = 0; i < idsToLoad.size(); i++) {
+            MapSession session = loadSession(idsToLoad.get(i), loaded.get(i), false, !legacy[i]);
+            if (session != null) {
+                sessions.put(session.getId(), toRedisSession(session, legacy[i]));
+            }
+        }
+        return sessions;
+    }
+
+    private RedisSession getSession(String id, boolean allowExpired) {
+        if (this.circuitBreaker == null || allowExpired) {
+            return doGetSession(id, allowExpired);
+        }
+        if (this.degradedStore.isQueued(id) || !this.circuitBreaker.tryAcquire()) {
+            return getDegradedSession(id);
+        }
+        long start = System.nanoTime();
+        RedisSession session;
+        try {
+            session = doGetSession(id, false);
+        }
+        catch (DataAccessException ex) {
+            this.circuitBreaker.onFailure();
+            log.warn("Error loading session " + id + ", served locally.", ex);
+            return getDegradedSession(id);
+        }
+        catch (RuntimeException | Error ex) {
+            this.circuitBreaker.onIgnored();
+            throw ex;
+        }
+        onRedisCallSucceeded(start);
+        if (session != null) {
+            this.degradedStore.remember(id, session.getStoredSession());
+        }
+        return session;
+    }
+
+    private RedisSession getDegradedSession(String id) {
+        this.degradedReadCount.increment();
+        MapSession local = this.degradedStore.get(id);
+        return (local == null || local.isExpired()) ? null : toRedisSession(local);
+    }
+
+    private RedisSession doGetSession(String id, boolean allowExpired) {
+        RedisSession pending = (this.writeBehindFlusher != null) ? this.writeBehindFlusher.get(id) : null;
+        if (pending != null) {
+            return pending.isExpired() && !allowExpired ? null : toRedisSession(pending.getStoredSession());
+        }
+        MapSession loaded = (allowExpired || this.sessionCache == null) ? null : this.sessionCache.get(id);
+        if (loaded != null && loaded.isExpired()) {
+            // touches by other nodes are not published, the copy may only look expired
+            this.sessionCache.invalidate(id);
+            loaded = null;
+        }
+        boolean legacy = false;
+        if (loaded == null) {
+            Map<byte[], byte[]> entries = getRawSessionEntries(getSessionKey(id));
+            if (entries.isEmpty() && isLegacyKeyFallback()) {
+                entries = getRawSessionEntries(getLegacySessionKey(id));
+                legacy = !entries.isEmpty();
+            }
+            loaded = loadSession(id, entries, allowExpired, !legacy);
+        }
+        if (loaded == null || (!allowExpired && loaded.isExpired())) {
+            return null;
+        }
+        return toRedisSession(loaded, legacy);
+    }
+
+    private MapSession loadSession(String id, Map<byte[], byte[]> entries, boolean allowExpired) {
+        return loadSession(id, entries, allowExpired, true);
+    }
+
+    /**
+     * Sessions read from the legacy key layout are not cached, so that their next save
+     * always sees where they came from and migrates them.
+     */
+    private MapSession loadSession(String id, Map<byte[], byte[]> entries, boolean allowExpired, boolean cacheable) {
+        if (entries == null || entries.isEmpty()) {
+            return null;
+        }
+        MapSession loaded = loadSerializedSession(id, entries);
+        if (loaded.isExpired()) {
+            return allowExpired ? loaded : null;
+        }
+        if (this.sessionCache != null && cacheable) {
+            this.sessionCache.put(id, loaded, weigh(entries));
+        }
+        return loaded;
+    }
+
+    private RedisSession toRedisSession(MapSession loaded) {
+        return toRedisSession(loaded, false);
+    }
+
+    private RedisSession toRedisSession(MapSession loaded, boolean legacyLayout) {
+        RedisSession result = new RedisSession(loaded, false);
+        result.originalLastAccessTime = loaded.getLastAccessedTime();
+        result.legacyLayout = legacyLayout;
+        return result;
+    }
+
+    private boolean isLegacyKeyFallback() {
+        return this.hashTaggedKeys && this.legacyKeyFallback;
+    }
+
+    private List<String> getSessionKeys(List<String> sessionIds) {
+        List<String> keys = new ArrayList<>(sessionIds.size());
+        for (String sessionId : sessionIds) {
+            keys.add(getSessionKey(sessionId));
+        }
+        return keys;
+    }
+
+    private Map<byte[], byte[]> getRawSessionEntries(String sessionKey) {
+        byte[] key = serializeKey(sessionKey);
+        Map<byte[], byte[]> entries = this.sessionRedisOperations
+                .execute((RedisCallback<Map<byte[], byte[]>>) (connection) -> connection.hGetAll(key));
+        return (entries != null) ? entries : Collections.emptyMap();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<byte[], byte[]>> getRawSessionEntries(List<String> sessionKeys) {
+        if (sessionKeys.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<byte[]> keys = new ArrayList<>(sessionKeys.size());
+        for (String sessionKey : sessionKeys) {
+            keys.add(serializeKey(sessionKey));
+        }
+        List<Object> results = this.sessionRedisOperations.execute((RedisCallback<List<Object>>) (connection) -> {
+            connection.openPipeline();
+            boolean pipelineClosed = false;
+            try {
+                for (byte[] key : keys) {
+                    connection.hGetAll(key);
+                }
+                List<Object> closed = connection.closePipeline();
+                pipelineClosed = true;
+                return closed;
+            }
+            finally {
+                if (!pipelineClosed) {
+                    connection.closePipeline();
+                }
+            }
+        });
+        List<Map<byte[], byte[]>> entries = new ArrayList<>(sessionKeys.size());
+        for (int i = 0; i < sessionKeys.size(); i++) {
+            Object result = (results != null && i < results.size()) ? results.get(i) : null;
+            entries.add((result instanceof Map) ? (Map<byte[], byte[]>) result : Collections.emptyMap());
+        }
+        return entries;
+    }
+
+    private void putSessionEntries(String sessionId, Map<String, Object> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        byte[] key = serializeKey(getSessionKey(sessionId));
+        Map<byte[], byte[]> serialized = new HashMap<>(entries.size());
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            Object value = entry.getValue();
+            serialized.put(serializeHashKey(entry.getKey()), (value instanceof SerializedAttribute)
+                    ? ((SerializedAttribute) value).bytes : serializeHashValue(value));
+        }
+        this.sessionRedisOperations.execute((RedisCallback<Object>) (connection) -> {
+            connection.hMSet(key, serialized);
+            return null;
+        });
+    }
+
+    private static long weigh(Map<byte[], byte[]> entries) {
+        long weight = 0;
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            weight += entry.getKey().length + ((entry.getValue() != null) ? entry.getValue().length : 0);
+        }
+        return weight;
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] serializeKey(String key) {
+        return ((RedisSerializer<Object>) this.sessionRedisOperations.getKeySerializer()).serialize(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] serializeValue(Object value) {
+        return ((RedisSerializer<Object>) this.sessionRedisOperations.getValueSerializer()).serialize(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] serializeHashKey(String hashKey) {
+        return ((RedisSerializer<Object>) this.sessionRedisOperations.getHashKeySerializer()).serialize(hashKey);
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] serializeHashValue(Object value) {
+        return ((RedisSerializer<Object>) this.sessionRedisOperations.getHashValueSerializer()).serialize(value);
+    }
+
+    private String deserializeHashKey(byte[] hashKey) {
+        return (String) this.sessionRedisOperations.getHashKeySerializer().deserialize(hashKey);
+    }
+
+    private Object deserializeHashValue(byte[] value) {
+        return this.sessionRedisOperations.getHashValueSerializer().deserialize(value);
+    }
+
+    /**
+     * Builds the session from its raw hash entries. Attribute values are kept serialized
+     * and only deserialized when {@link RedisSession#getAttribute(String)} first asks for
+     * them.
+     */
+    private MapSession loadSerializedSession(String id, Map<byte[], byte[]> entries) {
+        Map<Object, Object> deserialized = new HashMap<>(entries.size());
+        List<String> detached = null;
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            String key = deserializeHashKey(entry.getKey());
+            byte[] value = entry.getValue();
+            if (key.startsWith(RedisSessionMapper.DETACHED_ATTRIBUTE_PREFIX)) {
+                if (detached == null) {
+                    detached = new ArrayList<>();
+                }
+                detached.add(getSessionAttrNameKey(
+                        key.substring(RedisSessionMapper.DETACHED_ATTRIBUTE_PREFIX.length())));
+            }
+            else if (!key.startsWith(RedisSessionMapper.ATTRIBUTE_PREFIX)) {
+                deserialized.put(key, deserializeHashValue(value));
+            }
+            else if (value != null && value.length > 0) {
+                deserialized.put(key, new SerializedAttribute(value));
+            }
+        }
+        if (detached != null) {
+            // a value in the hash wins over a detached one left from another configuration
+            for (String attributeKey : detached) {
+                deserialized.putIfAbsent(attributeKey, DetachedAttribute.INSTANCE);
+            }
+        }
+        return loadSession(id, deserialized);
+    }
+
+    private MapSession loadSession(String id, Map<Object, Object> entries) {
+        MapSession loaded = new MapSession(id);
+        for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+            String key = (String) entry.getKey();
+            if (RedisSessionMapper.CREATION_TIME_KEY.equals(key)) {
+                loaded.setCreationTime(Instant.ofEpochMilli((long) entry.getValue()));
+            }
+            else if (RedisSessionMapper.MAX_INACTIVE_INTERVAL_KEY.equals(key)) {
+                loaded.setMaxInactiveInterval(Duration.ofSeconds((int) entry.getValue()));
+            }
+            else if (RedisSessionMapper.LAST_ACCESSED_TIME_KEY.equals(key)) {
+                loaded.setLastAccessedTime(Instant.ofEpochMilli((long) entry.getValue()));
+            }
+            else if (key.startsWith(RedisSessionMapper.ATTRIBUTE_PREFIX)) {
+                loaded.setAttribute(key.substring(RedisSessionMapper.ATTRIBUTE_PREFIX.length()), entry.getValue());
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    public void deleteById(String sessionId) {
+        if (this.circuitBreaker == null) {
+            doDeleteById(sessionId);
+            return;
+        }
+        if (!this.circuitBreaker.tryAcquire()) {
+            queueDegradedDelete(sessionId);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            this.degradedStore.replay(sessionId);
+            doDeleteById(sessionId);
+        }
+        catch (DataAccessException ex) {
+            this.circuitBreaker.onFailure();
+            log.warn("Error deleting session " + sessionId + ", queued locally.", ex);
+            queueDegradedDelete(sessionId);
+            return;
+        }
+        catch (RuntimeException | Error ex) {
+            this.circuitBreaker.onIgnored();
+            throw ex;
+        }
+        onRedisCallSucceeded(start);
+    }
+
+    private void queueDegradedDelete(String sessionId) {
+        if (!this.degradedStore.queueDelete(sessionId)) {
+            log.warn("Too many session writes queued locally, dropped the delete of session " + sessionId);
+        }
+    }
+
+    private void doDeleteById(String sessionId) {
+        flushWriteBehind(sessionId);
+        if (this.scriptedDelete && isKeyspaceExpiration()) {
+            boolean invalidated = invalidate(Collections.singletonList(sessionId), null)[0];
+            if (invalidated || !isLegacyKeyFallback()) {
+                return;
+            }
+        }
+        deleteSession(sessionId);
+    }
+
+    /**
+     * Invalidates all the sessions of a principal and removes them from the principal
+     * index. With {@link SessionExpirationStrategy#MINUTE_BUCKETS} this is done with a
+     * script, in batches of {@value #INVALIDATE_BATCH_SIZE} sessions per call, and the
+     * {@link SessionDeletedEvent}s are published when the keyspace notifications arrive.
+     * Otherwise the sessions are deleted one by one. A batch touches the keys of several
+     * sessions and the principal index, so on Redis Cluster the script only runs when
+     * they share a slot.
+     * @param principalName the principal name
+     * @return the number of sessions invalidated
+     */
+    public int invalidateAllForPrincipal(String principalName) {
+        String principalKey = this.sortedPrincipalIndex ? getSortedPrincipalKey(principalName)
+                : getPrincipalKey(principalName);
+        List<String> sessionIds = getPrincipalSessionIds(principalName);
+        if (sessionIds.isEmpty()) {
+            return 0;
+        }
+        int count = 0;
+        if (!isKeyspaceExpiration()) {
+            for (String sessionId : sessionIds) {
+                flushWriteBehind(sessionId);
+                if (deleteSession(sessionId)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        for (int from = 0; from < sessionIds.size(); from += INVALIDATE_BATCH_SIZE) {
+            List<String> batch = sessionIds.subList(from, Math.min(from + INVALIDATE_BATCH_SIZE, sessionIds.size()));
+            batch.forEach(this::flushWriteBehind);
+            boolean[] invalidated = invalidate(batch, principalKey);
+            for (int i = 0; i < batch.size(); i++) {
+                if (invalidated[i] || (isLegacyKeyFallback() && deleteSession(batch.get(i)))) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs the {@link #INVALIDATE} script for the given sessions, removing them from the
+     * given principal index if there is one, and returns for every session whether it
+     * existed under its key.
+     */
+    private boolean[] invalidate(List<String> sessionIds, String principalKey) {
+        List<Object> keys = new ArrayList<>(sessionIds.size() * 2 + 1);
+        List<byte[]> args = new ArrayList<>(5 + sessionIds.size());
+        args.add(serializeHashKey(RedisSessionMapper.MAX_INACTIVE_INTERVAL_KEY));
+        args.add(serializeHashValue(0));
+        args.add(serializeHashKey(RedisSessionMapper.DETACHED_ATTRIBUTE_PREFIX));
+        args.add(toBytes(String.valueOf(INVALIDATED_GRACE_PERIOD_SECONDS)));
+        args.add(toBytes(this.sortedPrincipalIndex ? "zrem" : "srem"));
+        for (String sessionId : sessionIds) {
+            keys.add(getSessionKey(sessionId));
+            keys.add(getExpiredKey(sessionId));
+            args.add(this.sortedPrincipalIndex ? toBytes(sessionId) : serializeValue(sessionId));
+        }
+        if (principalKey != null) {
+            keys.add(principalKey);
+        }
+        List<?> result = this.sessionRedisOperations.execute(INVALIDATE, RedisSerializer.byteArray(), null, keys,
+                args.toArray());
+        boolean[] invalidated = new boolean[sessionIds.size()];
+        List<byte[]> detachedKeys = new ArrayList<>();
+        for (int i = 0; i < invalidated.length; i++) {
+            Object existed = (result != null && i < result.size()) ? result.get(i) : null;
+            invalidated[i] = existed instanceof List;
+            if (!invalidated[i]) {
+                continue;
+            }
+            for (Object field : (List<?>) existed) {
+                String attributeName = deserializeHashKey((byte[]) field)
+                        .substring(RedisSessionMapper.DETACHED_ATTRIBUTE_PREFIX.length());
+                detachedKeys.add(serializeKey(getDetachedAttributeKey(sessionIds.get(i), attributeName)));
+            }
+            if (this.sessionCache != null) {
+                this.sessionCache.invalidate(sessionIds.get(i));
+                publishInvalidation(sessionIds.get(i));
+            }
+        }
+        if (!detachedKeys.isEmpty()) {
+            this.sessionRedisOperations.executePipelined((RedisCallback<Object>) (connection) -> {
+                for (byte[] detachedKey : detachedKeys) {
+                    connection.expire(detachedKey, INVALIDATED_GRACE_PERIOD_SECONDS);
+                }
+                return null;
+            });
+        }
+        return invalidated;
+    }
+
+    private static byte[] toBytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes a session after reading it, returns whether it existed.
+     */
+    private boolean deleteSession(String sessionId) {
+        RedisSession session = getSession(sessionId, true);
+        if (session == null) {
+            return false;
+        }
+
+        cleanupPrincipalIndex(session);
+        this.expirationPolicy.onDelete(session);
+
+        if (isKeyspaceExpiration()) {
+            String expireKey = getExpiredKey(session.getId());
+            this.sessionRedisOperations.delete(expireKey);
+        }
+
+        boolean legacyLayout = session.legacyLayout;
+        session.setMaxInactiveInterval(Duration.ZERO);
+        session.save();
+        if (this.sessionCache != null) {
+            this.sessionCache.invalidate(sessionId);
+        }
+        if (legacyLayout) {
+            // the untagged expires key is ignored once the session is migrated
+            this.sessionRedisOperations.delete(getExpiredKeyPrefix() + sessionId);
+        }
+        if (!isKeyspaceExpiration() || legacyLayout) {
+            handleDeleted(session);
+        }
+        return true;
+    }
+
+    /**
+     * Handles a session the sorted set expiration policy removed from its index. The
+     * session is destroyed only if it is really expired, a session saved concurrently
+     * with the reaping is put back in the index instead.
+     */
+    private void handleReaped(String sessionId) {
+        RedisSession session = getSession(sessionId, true);
+        if (session == null) {
+            return;
+        }
+        if (!session.isExpired()) {
+            this.expirationPolicy.onExpirationUpdated(null, session);
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Publishing SessionExpiredEvent for session " + sessionId);
+        }
+
+        if (this.sessionCache != null) {
+            this.sessionCache.invalidate(sessionId);
+        }
+        cleanupPrincipalIndex(session);
+        List<String> keys = new ArrayList<>();
+        keys.add(getSessionKey(sessionId));
+        for (String attributeName : session.storedDetachedAttributes) {
+            keys.add(getDetachedAttributeKey(sessionId, attributeName));
+        }
+        this.sessionRedisOperations.delete(keys);
+        handleExpired(session);
+    }
+
+    @Override
+    public RedisSession createSession() {
+        MapSession cached = new MapSession(sessionIdGenerator.generate());
+        if (this.defaultMaxInactiveInterval != null) {
+            cached.setMaxInactiveInterval(Duration.ofSeconds(this.defaultMaxInactiveInterval));
+        }
+        RedisSession session = new RedisSession(cached, true);
+        session.flushImmediateIfNecessary();
+        return session;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        byte[] messageChannel = message.getChannel();
+
+        if (Arrays.equals(messageChannel, this.sessionInvalidatedChannelBytes)) {
+            handleInvalidated(new String(message.getBody()));
+            return;
+        }
+
+        if (ByteUtils.startsWith(messageChannel, this.sessionCreatedChannelPrefixBytes)) {
+            // TODO: is this thread safe?
+            @SuppressWarnings("unchecked")
+            Map<Object, Object> loaded = (Map<Object, Object>) this.defaultSerializer.deserialize(message.getBody());
+            handleCreated(loaded, new String(messageChannel));
+            return;
+        }
+
+        byte[] messageBody = message.getBody();
+
+        if (!ByteUtils.startsWith(messageBody, this.expiredKeyPrefixBytes)) {
+            return;
+        }
+
+        boolean isDeleted = Arrays.equals(messageChannel, this.sessionDeletedChannelBytes);
+        if (isDeleted || Arrays.equals(messageChannel, this.sessionExpiredChannelBytes)) {
+            String body = new String(messageBody);
+            int beginIndex = body.lastIndexOf(":") + 1;
+            int endIndex = body.length();
+            String sessionId = body.substring(beginIndex, endIndex);
+            boolean legacy = true;
+            if (sessionId.length() > 1 && sessionId.startsWith("{") && sessionId.endsWith("}")) {
+                sessionId = sessionId.substring(1, sessionId.length() - 1);
+                legacy = false;
+            }
+            legacy = legacy && isLegacyKeyFallback();
+
+            if (this.eventProcessor != null) {
+                this.eventProcessor.submit(sessionId, isDeleted, legacy);
+            }
+            else {
+                handleDestroyed(Collections.singletonList(
+                        new SessionEventProcessor.Event(sessionId, isDeleted, legacy)));
+            }
+        }
+    }
+
+    /**
+     * Loads the destroyed sessions in one pipelined round trip, removes them from the
+     * principal index and publishes their events in order. An event of an untagged
+     * expires key is ignored once its session has been migrated to the hash tagged key
+     * layout.
+     */
+    private void handleDestroyed(List<SessionEventProcessor.Event> events) {
+        List<String> sessionIds = new ArrayList<>(events.size());
+        for (SessionEventProcessor.Event event : events) {
+            sessionIds.add(event.sessionId);
+        }
+        List<Map<byte[], byte[]>> entries = getRawSessionEntries(getSessionKeys(sessionIds));
+
+        List<Integer> legacyEvents = new ArrayList<>();
+        List<String> legacyKeys = new ArrayList<>();
+        for (int i = 0; i < events.size(); i++) {
+            if (!events.get(i).legacy) {
+                continue;
+            }
+            if (entries.get(i).isEmpty()) {
+                legacyEvents.add(i);
+                legacyKeys.add(getLegacySessionKey(sessionIds.get(i)));
+            }
+            else {
+                entries.set(i, null);
+            }
+        }
+        List<Map<byte[], byte[]>> legacyEntries = getRawSessionEntries(legacyKeys);
+        for (int j = 0; j < legacyEvents.size(); j++) {
+            entries.set(legacyEvents.get(j), legacyEntries.get(j));
+        }
+
+        List<RedisSession> sessions = new ArrayList<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            String sessionId = sessionIds.get(i);
+            if (entries.get(i) == null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Ignoring destroyed untagged keys of migrated session " + sessionId);
+                }
+                sessions.add(null);
+                continue;
+            }
+            MapSession loaded = loadSession(sessionId, entries.get(i), true, false);
+            if (this.sessionCache != null) {
+                this.sessionCache.invalidate(sessionId);
+            }
+            if (loaded == null) {
+                log.warn("Unable to publish SessionDestroyedEvent for session " + sessionId);
+                sessions.add(null);
+            }
+            else {
+                sessions.add(toRedisSession(loaded));
+            }
+        }
+
+        cleanupPrincipalIndexes(sessions);
+
+        for (int i = 0; i < events.size(); i++) {
+            RedisSession session = sessions.get(i);
+            if (session == null) {
+                continue;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Publishing SessionDestroyedEvent for session " + session.getId());
+            }
+            if (events.get(i).deleted) {
+                handleDeleted(session);
+            }
+            else {
                 handleExpired(session);
             }
         }
     }
 
-    private void cleanupPrincipalIndex(RedisSession session) {
-        String sessionId = session.getId();
-        Map<String, String> indexes = CustomSIDRedisIndexedSessionRepository.this.indexResolver.resolveIndexesFor(session);
-        String principal = indexes.get(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME);
-        if (principal != null) {
-            this.sessionRedisOperations.boundSetOps(getPrincipalKey(principal)).remove(sessionId);
+    private void cleanupPrincipalIndexes(List<RedisSession> sessions) {
+        if (sessions.size() == 1) {
+            if (sessions.get(0) != null) {
+                cleanupPrincipalIndex(sessions.get(0));
+            }
+            return;
+        }
+        this.sessionRedisOperations.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                for (RedisSession session : sessions) {
+                    if (session != null) {
+                        cleanupPrincipalIndex(session);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private void cleanupPrincipalIndex(RedisSession session) {
+        String sessionId = session.getId();
+        Map<String, String> indexes = CustomSIDRedisIndexedSessionRepository.this.indexResolver.resolveIndexesFor(session);
+        for (Map.Entry<String, String> index : indexes.entrySet()) {
+            if (index.getValue() == null) {
+                continue;
+            }
+            if (FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME.equals(index.getKey())) {
+                removeFromPrincipalIndex(index.getValue(), sessionId);
+            }
+            else {
+                this.sessionRedisOperations.boundSetOps(getIndexKey(index.getKey(), index.getValue())).remove(sessionId);
+            }
+        }
+    }
+
+    private void handleInvalidated(String body) {
+        if (this.sessionCache == null) {
+            return;
         }
+        int separator = body.indexOf(':');
+        if (separator < 0 || this.nodeId.equals(body.substring(0, separator))) {
+            return;
+        }
+        this.sessionCache.invalidate(body.substring(separator + 1));
+    }
+
+    private void publishInvalidation(String sessionId) {
+        byte[] channel = this.sessionInvalidatedChannelBytes;
+        byte[] body = (this.nodeId + ":" + sessionId).getBytes();
+        this.sessionRedisOperations.execute((RedisCallback<Long>) (connection) -> connection.publish(channel, body));
     }
 
     private void handleCreated(Map<Object, Object> loaded, String channel) {
         String id = channel.substring(channel.lastIndexOf(":") + 1);
         Session session = loadSession(id, loaded);
+        if (this.sessionCreatedEventMode == SessionCreatedEventMode.LIGHTWEIGHT) {
+            session = new LazyAttributesSession((MapSession) session);
+        }
         publishEvent(new SessionCreatedEvent(this, session));
     }
 
@@ -370,11 +2007,37 @@ public class CustomSIDRedisIndexedSessionRepository
     }
 
     String getSessionKey(String sessionId) {
+        if (this.hashTaggedKeys) {
+            return this.namespace + "sessions:{" + sessionId + "}";
+        }
+        return getLegacySessionKey(sessionId);
+    }
+
+    private String getLegacySessionKey(String sessionId) {
         return this.namespace + "sessions:" + sessionId;
     }
 
+    String getDetachedAttributeKey(String sessionId, String attributeName) {
+        if (this.hashTaggedKeys) {
+            return this.namespace + "sessions:attrs:{" + sessionId + "}:" + attributeName;
+        }
+        return getLegacyDetachedAttributeKey(sessionId, attributeName);
+    }
+
+    private String getLegacyDetachedAttributeKey(String sessionId, String attributeName) {
+        return this.namespace + "sessions:attrs:" + sessionId + ":" + attributeName;
+    }
+
     String getPrincipalKey(String principalName) {
-        return this.namespace + "index:" + FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME + ":"
+        return getIndexKey(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, principalName);
+    }
+
+    String getIndexKey(String indexName, String indexValue) {
+        return this.namespace + "index:" + indexName + ":" + indexValue;
+    }
+
+    String getSortedPrincipalKey(String principalName) {
+        return this.namespace + "index:sorted:" + FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME + ":"
                 + principalName;
     }
 
@@ -382,7 +2045,30 @@ public class CustomSIDRedisIndexedSessionRepository
         return this.namespace + "expirations:" + expiration;
     }
 
-    private String getExpiredKey(String sessionId) {
+    String getExpirationsCleanupKey() {
+        return this.namespace + "expirations:cleanup";
+    }
+
+    String getCleanupLeaseKey() {
+        return this.namespace + "expirations:cleanup-lease";
+    }
+
+    String getCleanupReportKey() {
+        return this.namespace + "expirations:cleanup-report";
+    }
+
+    String getLayoutKey() {
+        return this.namespace + "layout";
+    }
+
+    String getExpirationsIndexKey() {
+        return this.namespace + "expirations:index";
+    }
+
+    String getExpiredKey(String sessionId) {
+        if (this.hashTaggedKeys) {
+            return getExpiredKeyPrefix() + "{" + sessionId + "}";
+        }
         return getExpiredKeyPrefix() + sessionId;
     }
 
@@ -406,36 +2092,203 @@ public class CustomSIDRedisIndexedSessionRepository
         return this.sessionExpiredChannel;
     }
 
-    private BoundHashOperations<Object, Object, Object> getSessionBoundHashOperations(String sessionId) {
-        String key = getSessionKey(sessionId);
-        return this.sessionRedisOperations.boundHashOps(key);
+    public String getSessionInvalidatedChannel() {
+        return this.sessionInvalidatedChannel;
     }
 
     static String getSessionAttrNameKey(String attributeName) {
         return RedisSessionMapper.ATTRIBUTE_PREFIX + attributeName;
     }
 
+    static String getDetachedAttrNameKey(String attributeName) {
+        return RedisSessionMapper.DETACHED_ATTRIBUTE_PREFIX + attributeName;
+    }
+
+    /**
+     * Returns the time to live of the detached attributes of a session in seconds, the
+     * one the expiration policies give to the session hash, or {@code -1} if the session
+     * never expires.
+     */
+    private static long getDetachedAttributeTimeToLive(Session session) {
+        long maxInactiveInterval = session.getMaxInactiveInterval().getSeconds();
+        return (maxInactiveInterval < 0) ? -1 : maxInactiveInterval + TimeUnit.MINUTES.toSeconds(5);
+    }
+
+    private static boolean isPrincipalAttribute(String attributeName) {
+        return FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME.equals(attributeName)
+                || SPRING_SECURITY_CONTEXT.equals(attributeName);
+    }
+
+    /**
+     * The session of a lightweight created event. Its timestamps come with the event, its
+     * attributes are read from Redis the first time they are asked for.
+     */
+    private final class LazyAttributesSession implements Session {
+
+        private final MapSession session;
+
+        private boolean attributesLoaded;
+
+        LazyAttributesSession(MapSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public String getId() {
+            return this.session.getId();
+        }
+
+        @Override
+        public String changeSessionId() {
+            return this.session.changeSessionId();
+        }
+
+        @Override
+        public <T> T getAttribute(String attributeName) {
+            loadAttributes();
+            return this.session.getAttribute(attributeName);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            loadAttributes();
+            return this.session.getAttributeNames();
+        }
+
+        @Override
+        public void setAttribute(String attributeName, Object attributeValue) {
+            loadAttributes();
+            this.session.setAttribute(attributeName, attributeValue);
+        }
+
+        @Override
+        public void removeAttribute(String attributeName) {
+            loadAttributes();
+            this.session.removeAttribute(attributeName);
+        }
+
+        @Override
+        public Instant getCreationTime() {
+            return this.session.getCreationTime();
+        }
+
+        @Override
+        public void setLastAccessedTime(Instant lastAccessedTime) {
+            this.session.setLastAccessedTime(lastAccessedTime);
+        }
+
+        @Override
+        public Instant getLastAccessedTime() {
+            return this.session.getLastAccessedTime();
+        }
+
+        @Override
+        public void setMaxInactiveInterval(Duration interval) {
+            this.session.setMaxInactiveInterval(interval);
+        }
+
+        @Override
+        public Duration getMaxInactiveInterval() {
+            return this.session.getMaxInactiveInterval();
+        }
+
+        @Override
+        public boolean isExpired() {
+            return this.session.isExpired();
+        }
+
+        private synchronized void loadAttributes() {
+            if (this.attributesLoaded) {
+                return;
+            }
+            this.attributesLoaded = true;
+            RedisSession stored = getSession(getId(), true);
+            if (stored == null) {
+                return;
+            }
+            for (String attributeName : stored.getAttributeNames()) {
+                this.session.setAttribute(attributeName, stored.getAttribute(attributeName));
+            }
+        }
+
+    }
+
+    /**
+     * An attribute value as read from the session hash that nobody asked for yet.
+     */
+    private static final class SerializedAttribute {
+
+        private final byte[] bytes;
+
+        SerializedAttribute(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+    }
+
+    /**
+     * Stands for the value of a detached attribute that was not read yet.
+     */
+    private static final class DetachedAttribute {
+
+        private static final DetachedAttribute INSTANCE = new DetachedAttribute();
+
+    }
+
     final class RedisSession implements Session {
 
         private final MapSession cached;
 
         private Instant originalLastAccessTime;
 
+        private boolean touchPending;
+
+        private boolean legacyLayout;
+
         private Map<String, Object> delta = new HashMap<>();
 
         private boolean isNew;
 
         private String originalPrincipalName;
 
+        private boolean originalPrincipalNameResolved;
+
+        /**
+         * The indexes the session had when it was loaded or last saved, resolved together
+         * with the original principal name.
+         */
+        private Map<String, String> originalIndexes;
+
         private String originalSessionId;
 
+        private Map<String, Object> resolvedAttributes;
+
+        private boolean principalIndexPending;
+
+        /**
+         * The indexes of the session as it is about to be saved, resolved by
+         * {@link #resolveIndexesForSave()} before the save is batched.
+         */
+        private Map<String, String> indexesToSave;
+
+        /**
+         * Names of the attributes whose value is stored under a key of their own.
+         */
+        private final Set<String> storedDetachedAttributes = new HashSet<>();
+
         RedisSession(MapSession cached, boolean isNew) {
             this.cached = cached;
             this.isNew = isNew;
             this.originalSessionId = cached.getId();
-            Map<String, String> indexes = CustomSIDRedisIndexedSessionRepository.this.indexResolver.resolveIndexesFor(this);
-            this.originalPrincipalName = indexes.get(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME);
+            if (!this.isNew) {
+                for (String attributeName : cached.getAttributeNames()) {
+                    if (cached.getAttribute(attributeName) == DetachedAttribute.INSTANCE) {
+                        this.storedDetachedAttributes.add(attributeName);
+                    }
+                }
+            }
             if (this.isNew) {
+                resolveOriginalPrincipalName();
                 this.delta.put(RedisSessionMapper.CREATION_TIME_KEY, cached.getCreationTime().toEpochMilli());
                 this.delta.put(RedisSessionMapper.MAX_INACTIVE_INTERVAL_KEY,
                         (int) cached.getMaxInactiveInterval().getSeconds());
@@ -450,8 +2303,36 @@ public class CustomSIDRedisIndexedSessionRepository
         @Override
         public void setLastAccessedTime(Instant lastAccessedTime) {
             this.cached.setLastAccessedTime(lastAccessedTime);
-            this.delta.put(RedisSessionMapper.LAST_ACCESSED_TIME_KEY, getLastAccessedTime().toEpochMilli());
-            flushImmediateIfNecessary();
+            if (!isTouchCoalesced()) {
+                this.delta.put(RedisSessionMapper.LAST_ACCESSED_TIME_KEY, getLastAccessedTime().toEpochMilli());
+                flushImmediateIfNecessary();
+            }
+            else {
+                this.touchPending = true;
+            }
+        }
+
+        /**
+         * Whether the last accessed time moved too little since it was last written to be
+         * worth writing again.
+         */
+        private boolean isTouchCoalesced() {
+            Duration granularity = CustomSIDRedisIndexedSessionRepository.this.touchGranularity;
+            if (this.isNew || this.originalLastAccessTime == null || granularity.isZero()
+                    || this.delta.containsKey(RedisSessionMapper.LAST_ACCESSED_TIME_KEY)) {
+                return false;
+            }
+            Instant lastAccessedTime = getLastAccessedTime();
+            if (Duration.between(this.originalLastAccessTime, lastAccessedTime).compareTo(granularity) >= 0) {
+                return false;
+            }
+            if (!isKeyspaceExpiration()) {
+                return true;
+            }
+            long originalExpiration = this.originalLastAccessTime.plus(getMaxInactiveInterval()).toEpochMilli();
+            long expiration = lastAccessedTime.plus(getMaxInactiveInterval()).toEpochMilli();
+            return RedisSessionExpirationPolicy.roundUpToNextMinute(originalExpiration)
+                    == RedisSessionExpirationPolicy.roundUpToNextMinute(expiration);
         }
 
         @Override
@@ -495,7 +2376,10 @@ public class CustomSIDRedisIndexedSessionRepository
 
         @Override
         public <T> T getAttribute(String attributeName) {
-            T attributeValue = this.cached.getAttribute(attributeName);
+            if (isPrincipalAttribute(attributeName)) {
+                resolveOriginalPrincipalName();
+            }
+            T attributeValue = resolveAttribute(attributeName);
             if (attributeValue != null
                     && CustomSIDRedisIndexedSessionRepository.this.saveMode.equals(SaveMode.ON_GET_ATTRIBUTE)) {
                 this.delta.put(getSessionAttrNameKey(attributeName), attributeValue);
@@ -508,8 +2392,73 @@ public class CustomSIDRedisIndexedSessionRepository
             return this.cached.getAttributeNames();
         }
 
+        @SuppressWarnings("unchecked")
+        private <T> T resolveAttribute(String attributeName) {
+            Object stored = this.cached.getAttribute(attributeName);
+            Object attributeValue;
+            if (stored instanceof SerializedAttribute) {
+                attributeValue = deserializeHashValue(((SerializedAttribute) stored).bytes);
+            }
+            else if (stored == DetachedAttribute.INSTANCE) {
+                attributeValue = loadDetachedAttribute(attributeName);
+            }
+            else {
+                return (T) stored;
+            }
+            this.cached.setAttribute(attributeName, attributeValue);
+            if (this.resolvedAttributes == null) {
+                this.resolvedAttributes = new HashMap<>();
+            }
+            this.resolvedAttributes.put(attributeName, stored);
+            String attributeKey = getSessionAttrNameKey(attributeName);
+            if (this.delta.get(attributeKey) == stored) {
+                this.delta.put(attributeKey, attributeValue);
+            }
+            return (T) attributeValue;
+        }
+
+        /**
+         * Reads a detached attribute from where it was stored, which is under the session
+         * id last saved. Returns {@code null} if the key is gone.
+         */
+        private Object loadDetachedAttribute(String attributeName) {
+            String key = this.legacyLayout
+                    ? getLegacyDetachedAttributeKey(this.originalSessionId, attributeName)
+                    : getDetachedAttributeKey(this.originalSessionId, attributeName);
+            byte[] rawKey = serializeKey(key);
+            byte[] value = CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations
+                    .execute((RedisCallback<byte[]>) (connection) -> {
+                        if (connection.isPipelined() || connection.isQueueing()) {
+                            // the reply would be null and the attribute lost
+                            throw new IllegalStateException("Detached attribute " + attributeName
+                                    + " cannot be read while a save is batched");
+                        }
+                        return connection.get(rawKey);
+                    });
+            return (value != null && value.length > 0) ? deserializeHashValue(value) : null;
+        }
+
+        /**
+         * Resolves the principal name and the indexes the session had when it was loaded.
+         * Called before a principal attribute is handed out or changed, and before any
+         * attribute is changed if there are secondary indexes, so the values seen are
+         * still the ones stored in Redis.
+         */
+        private void resolveOriginalPrincipalName() {
+            if (this.originalPrincipalNameResolved) {
+                return;
+            }
+            this.originalPrincipalNameResolved = true;
+            Map<String, String> indexes = CustomSIDRedisIndexedSessionRepository.this.indexResolver.resolveIndexesFor(this);
+            this.originalPrincipalName = indexes.get(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME);
+            this.originalIndexes = indexes;
+        }
+
         @Override
         public void setAttribute(String attributeName, Object attributeValue) {
+            if (isPrincipalAttribute(attributeName) || CustomSIDRedisIndexedSessionRepository.this.secondaryIndexes) {
+                resolveOriginalPrincipalName();
+            }
             this.cached.setAttribute(attributeName, attributeValue);
             this.delta.put(getSessionAttrNameKey(attributeName), attributeValue);
             flushImmediateIfNecessary();
@@ -517,6 +2466,9 @@ public class CustomSIDRedisIndexedSessionRepository
 
         @Override
         public void removeAttribute(String attributeName) {
+            if (isPrincipalAttribute(attributeName) || CustomSIDRedisIndexedSessionRepository.this.secondaryIndexes) {
+                resolveOriginalPrincipalName();
+            }
             this.cached.removeAttribute(attributeName);
             this.delta.put(getSessionAttrNameKey(attributeName), null);
             flushImmediateIfNecessary();
@@ -529,40 +2481,415 @@ public class CustomSIDRedisIndexedSessionRepository
         }
 
         private void save() {
+            if (this.legacyLayout && !this.isNew) {
+                putAllInDelta();
+            }
+            addPendingTouch();
+            String sessionId = this.originalSessionId;
+            boolean changed = !this.delta.isEmpty();
+            boolean contentChanged = !getId().equals(sessionId) || hasAttributesInDelta();
             saveChangeSessionId();
             saveDelta();
+            if (!this.isNew && (changed || contentChanged)) {
+                updateCachedSession(sessionId, contentChanged);
+            }
+            this.legacyLayout = false;
+        }
+
+        /**
+         * Adds a touch kept in memory to a delta that is written anyway.
+         */
+        private void addPendingTouch() {
+            if (this.touchPending && !this.delta.isEmpty()) {
+                this.delta.put(RedisSessionMapper.LAST_ACCESSED_TIME_KEY, getLastAccessedTime().toEpochMilli());
+            }
+        }
+
+        /**
+         * Whether a save of this session may be written behind. New sessions, id changes
+         * and sessions still in the untagged key layout are written right away.
+         */
+        private boolean isWriteBehind() {
+            return !this.isNew && !this.legacyLayout && getId().equals(this.originalSessionId)
+                    && CustomSIDRedisIndexedSessionRepository.this.flushMode == FlushMode.ON_SAVE;
+        }
+
+        /**
+         * Returns a copy of this session and of its changes not written yet.
+         */
+        private RedisSession copy() {
+            RedisSession copy = new RedisSession(new MapSession(this.cached), false);
+            copy.delta = new HashMap<>(this.delta);
+            copy.originalLastAccessTime = this.originalLastAccessTime;
+            copy.touchPending = this.touchPending;
+            copy.originalPrincipalName = this.originalPrincipalName;
+            copy.originalPrincipalNameResolved = this.originalPrincipalNameResolved;
+            copy.originalIndexes = this.originalIndexes;
+            copy.resolvedAttributes = (this.resolvedAttributes != null) ? new HashMap<>(this.resolvedAttributes) : null;
+            copy.storedDetachedAttributes.clear();
+            copy.storedDetachedAttributes.addAll(this.storedDetachedAttributes);
+            copy.isNew = this.isNew;
+            copy.originalSessionId = this.originalSessionId;
+            copy.legacyLayout = this.legacyLayout;
+            return copy;
+        }
+
+        /**
+         * Hands the changes of this session over to a copy to be written later, by the
+         * write-behind flusher or once Redis is back, and goes on as if they were written.
+         */
+        private RedisSession detach() {
+            RedisSession snapshot = copy();
+            this.delta = new HashMap<>();
+            this.isNew = false;
+            this.originalSessionId = getId();
+            this.legacyLayout = false;
+            if (snapshot.delta.containsKey(RedisSessionMapper.LAST_ACCESSED_TIME_KEY) || this.touchPending) {
+                this.originalLastAccessTime = getLastAccessedTime();
+                this.touchPending = false;
+            }
+            return snapshot;
+        }
+
+        /**
+         * Merges the snapshot of a later save into this one, which is not written yet. The
+         * later save read the session from this snapshot, so its delta applies on top of
+         * this one while what is stored in Redis is still what this snapshot started from.
+         */
+        private RedisSession mergedWith(RedisSession later) {
+            Map<String, Object> delta = new HashMap<>(this.delta);
+            delta.putAll(later.delta);
+            later.delta = delta;
+            later.originalLastAccessTime = this.originalLastAccessTime;
+            later.touchPending |= this.touchPending;
+            if (this.originalPrincipalNameResolved) {
+                later.originalPrincipalName = this.originalPrincipalName;
+                later.originalPrincipalNameResolved = true;
+                later.originalIndexes = this.originalIndexes;
+            }
+            later.storedDetachedAttributes.clear();
+            later.storedDetachedAttributes.addAll(this.storedDetachedAttributes);
+            later.isNew = this.isNew;
+            later.originalSessionId = this.originalSessionId;
+            later.legacyLayout = this.legacyLayout;
+            return later;
+        }
+
+        /**
+         * Puts every field of the session in the delta, so that a session read from the
+         * untagged key layout is written in full to its hash tagged key.
+         */
+        private void putAllInDelta() {
+            this.delta.put(RedisSessionMapper.CREATION_TIME_KEY, getCreationTime().toEpochMilli());
+            this.delta.put(RedisSessionMapper.MAX_INACTIVE_INTERVAL_KEY, (int) getMaxInactiveInterval().getSeconds());
+            this.delta.put(RedisSessionMapper.LAST_ACCESSED_TIME_KEY, getLastAccessedTime().toEpochMilli());
+            for (String attributeName : this.cached.getAttributeNames()) {
+                String attributeKey = getSessionAttrNameKey(attributeName);
+                if (!this.delta.containsKey(attributeKey)) {
+                    Object attributeValue = this.cached.getAttribute(attributeName);
+                    if (attributeValue == DetachedAttribute.INSTANCE) {
+                        attributeValue = resolveAttribute(attributeName);
+                    }
+                    this.delta.put(attributeKey, attributeValue);
+                }
+            }
+            // the detached values were read from the untagged keys, they are all written again
+            this.storedDetachedAttributes.clear();
+        }
+
+        private boolean hasAttributesInDelta() {
+            for (String key : this.delta.keySet()) {
+                if (key.startsWith(RedisSessionMapper.ATTRIBUTE_PREFIX)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void updateCachedSession(String originalSessionId, boolean contentChanged) {
+            LocalSessionCache sessionCache = CustomSIDRedisIndexedSessionRepository.this.sessionCache;
+            if (sessionCache == null) {
+                return;
+            }
+            if (!contentChanged) {
+                // the copies of other nodes keep an older last accessed time, see doGetSession
+                sessionCache.refresh(getId(), getStoredSession());
+                return;
+            }
+            sessionCache.invalidate(originalSessionId);
+            sessionCache.invalidate(getId());
+            if (!originalSessionId.equals(getId())) {
+                publishInvalidation(originalSessionId);
+            }
+        }
+
+        /**
+         * Returns a copy of the session as stored in Redis, with attributes that were
+         * resolved but not changed put back in their serialized form.
+         */
+        private MapSession getStoredSession() {
+            MapSession stored = new MapSession(this.cached);
+            if (this.resolvedAttributes != null) {
+                this.resolvedAttributes.forEach(stored::setAttribute);
+            }
+            return stored;
         }
 
         private void saveDelta() {
             if (this.delta.isEmpty()) {
                 return;
             }
+            resolveIndexesForSave();
+            // the detached attribute keys are written in the same batch as the hash
+            if (!CustomSIDRedisIndexedSessionRepository.this.pipelinedSave && !hasDetachedAttributes()) {
+                doSaveDelta();
+            }
+            else {
+                CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations.executePipelined(new SessionCallback<Object>() {
+                    @Override
+                    public <K, V> Object execute(RedisOperations<K, V> operations) {
+                        doSaveDelta();
+                        return null;
+                    }
+                });
+            }
+            savePrincipalIndex();
+        }
+
+        /**
+         * Adds the session to the sorted index of the principal it was given by the last
+         * {@link #doSaveDelta()}.
+         */
+        private void savePrincipalIndex() {
+            if (this.principalIndexPending) {
+                this.principalIndexPending = false;
+                addToPrincipalIndex(this.originalPrincipalName, getId(), getLastAccessedTime());
+            }
+        }
+
+        private void doSaveDelta() {
             String sessionId = getId();
-            getSessionBoundHashOperations(sessionId).putAll(this.delta);
-            String principalSessionKey = getSessionAttrNameKey(
-                    FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME);
-            String securityPrincipalSessionKey = getSessionAttrNameKey(SPRING_SECURITY_CONTEXT);
-            if (this.delta.containsKey(principalSessionKey) || this.delta.containsKey(securityPrincipalSessionKey)) {
+            Set<String> written = new HashSet<>();
+            putSessionEntries(sessionId, saveDetachedAttributes(sessionId, written));
+            boolean touched = this.delta.containsKey(RedisSessionMapper.LAST_ACCESSED_TIME_KEY);
+            boolean sortedPrincipalIndex = CustomSIDRedisIndexedSessionRepository.this.sortedPrincipalIndex;
+            resolveIndexesForSave();
+            if (isPrincipalChanged()) {
                 if (this.originalPrincipalName != null) {
-                    String originalPrincipalRedisKey = getPrincipalKey(this.originalPrincipalName);
-                    CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations.boundSetOps(originalPrincipalRedisKey)
-                            .remove(sessionId);
+                    removeFromPrincipalIndex(this.originalPrincipalName, sessionId);
                 }
-                Map<String, String> indexes = CustomSIDRedisIndexedSessionRepository.this.indexResolver.resolveIndexesFor(this);
+                Map<String, String> indexes = this.indexesToSave;
                 String principal = indexes.get(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME);
                 this.originalPrincipalName = principal;
-                if (principal != null) {
-                    String principalRedisKey = getPrincipalKey(principal);
-                    CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations.boundSetOps(principalRedisKey)
-                            .add(sessionId);
+                if (principal != null && sortedPrincipalIndex) {
+                    // the script may evict sessions and reports them, it runs after a pipeline
+                    this.principalIndexPending = true;
+                }
+                else if (principal != null) {
+                    addToPrincipalIndex(principal, sessionId, getLastAccessedTime());
+                }
+            }
+            else if (touched && sortedPrincipalIndex) {
+                if (this.originalPrincipalName != null) {
+                    touchPrincipalIndex(this.originalPrincipalName, sessionId, getLastAccessedTime());
                 }
             }
+            if (CustomSIDRedisIndexedSessionRepository.this.secondaryIndexes && hasAttributesInDelta()) {
+                saveSecondaryIndexes(sessionId);
+            }
+            this.indexesToSave = null;
 
+            if (!this.isNew && hasAttributesInDelta() && CustomSIDRedisIndexedSessionRepository.this.sessionCache != null) {
+                // sent in the same batch as the delta, after it
+                publishInvalidation(sessionId);
+            }
+            boolean maxInactiveIntervalChanged = this.delta.containsKey(RedisSessionMapper.MAX_INACTIVE_INTERVAL_KEY);
             this.delta = new HashMap<>(this.delta.size());
 
             Long originalExpiration = (this.originalLastAccessTime != null)
                     ? this.originalLastAccessTime.plus(getMaxInactiveInterval()).toEpochMilli() : null;
             CustomSIDRedisIndexedSessionRepository.this.expirationPolicy.onExpirationUpdated(originalExpiration, this);
+            long expiration = getLastAccessedTime().plus(getMaxInactiveInterval()).toEpochMilli();
+            if (maxInactiveIntervalChanged || originalExpiration == null
+                    || RedisSessionExpirationPolicy.roundUpToNextMinute(originalExpiration)
+                    != RedisSessionExpirationPolicy.roundUpToNextMinute(expiration)) {
+                expireDetachedAttributes(sessionId, written);
+            }
+            if (touched) {
+                this.originalLastAccessTime = getLastAccessedTime();
+                this.touchPending = false;
+            }
+        }
+
+        /**
+         * Writes the detached attributes in the delta to their own keys, with only a
+         * marker field left in the session hash, and returns the entries that go to the
+         * hash. Detached values that were never read are not written. Attributes that
+         * move in or out of the hash because the detached attribute names changed leave
+         * nothing behind.
+         */
+        private Map<String, Object> saveDetachedAttributes(String sessionId, Set<String> written) {
+            Set<String> detachedAttributes = CustomSIDRedisIndexedSessionRepository.this.detachedAttributes;
+            if (detachedAttributes.isEmpty() && this.storedDetachedAttributes.isEmpty()) {
+                return this.delta;
+            }
+            Map<String, Object> entries = new HashMap<>(this.delta.size());
+            Map<byte[], byte[]> values = new LinkedHashMap<>();
+            List<byte[]> deletedKeys = new ArrayList<>();
+            List<byte[]> deletedFields = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : this.delta.entrySet()) {
+                String attributeKey = entry.getKey();
+                Object attributeValue = entry.getValue();
+                if (!attributeKey.startsWith(RedisSessionMapper.ATTRIBUTE_PREFIX)) {
+                    entries.put(attributeKey, attributeValue);
+                    continue;
+                }
+                if (attributeValue == DetachedAttribute.INSTANCE) {
+                    continue;
+                }
+                String attributeName = attributeKey.substring(RedisSessionMapper.ATTRIBUTE_PREFIX.length());
+                byte[] detachedKey = serializeKey(getDetachedAttributeKey(sessionId, attributeName));
+                if (!detachedAttributes.contains(attributeName)) {
+                    entries.put(attributeKey, attributeValue);
+                    if (this.storedDetachedAttributes.remove(attributeName)) {
+                        deletedKeys.add(detachedKey);
+                        deletedFields.add(serializeHashKey(getDetachedAttrNameKey(attributeName)));
+                    }
+                    continue;
+                }
+                if (!this.isNew) {
+                    deletedFields.add(serializeHashKey(attributeKey));
+                }
+                if (attributeValue == null) {
+                    this.storedDetachedAttributes.remove(attributeName);
+                    deletedKeys.add(detachedKey);
+                    deletedFields.add(serializeHashKey(getDetachedAttrNameKey(attributeName)));
+                }
+                else {
+                    this.storedDetachedAttributes.add(attributeName);
+                    written.add(attributeName);
+                    values.put(detachedKey, (attributeValue instanceof SerializedAttribute)
+                            ? ((SerializedAttribute) attributeValue).bytes : serializeHashValue(attributeValue));
+                    entries.put(getDetachedAttrNameKey(attributeName), Boolean.TRUE);
+                }
+            }
+            if (values.isEmpty() && deletedKeys.isEmpty() && deletedFields.isEmpty()) {
+                return entries;
+            }
+            byte[] sessionKey = serializeKey(getSessionKey(sessionId));
+            long timeToLive = getDetachedAttributeTimeToLive(this);
+            Expiration expiration = (timeToLive < 0) ? Expiration.persistent() : Expiration.seconds(timeToLive);
+            CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations.execute((RedisCallback<Object>) (connection) -> {
+                for (Map.Entry<byte[], byte[]> value : values.entrySet()) {
+                    connection.set(value.getKey(), value.getValue(), expiration, RedisStringCommands.SetOption.upsert());
+                }
+                if (!deletedKeys.isEmpty()) {
+                    connection.del(deletedKeys.toArray(new byte[0][]));
+                }
+                if (!deletedFields.isEmpty()) {
+                    connection.hDel(sessionKey, deletedFields.toArray(new byte[0][]));
+                }
+                return null;
+            });
+            return entries;
+        }
+
+        /**
+         * Resolves the original and the current indexes {@link #doSaveDelta()} needs,
+         * before the save is pipelined or queued in a transaction: resolving them may read
+         * a detached attribute, whose reply is only available outside of a batch.
+         */
+        private void resolveIndexesForSave() {
+            if (this.indexesToSave != null) {
+                return;
+            }
+            boolean touched = this.delta.containsKey(RedisSessionMapper.LAST_ACCESSED_TIME_KEY);
+            boolean principalChanged = isPrincipalChanged();
+            boolean indexesChanged = CustomSIDRedisIndexedSessionRepository.this.secondaryIndexes
+                    && hasAttributesInDelta();
+            if (principalChanged || indexesChanged
+                    || (touched && CustomSIDRedisIndexedSessionRepository.this.sortedPrincipalIndex)) {
+                resolveOriginalPrincipalName();
+            }
+            if (principalChanged || indexesChanged) {
+                this.indexesToSave = CustomSIDRedisIndexedSessionRepository.this.indexResolver.resolveIndexesFor(this);
+            }
+        }
+
+        private boolean hasDetachedAttributes() {
+            return !CustomSIDRedisIndexedSessionRepository.this.detachedAttributes.isEmpty()
+                    || !this.storedDetachedAttributes.isEmpty();
+        }
+
+        /**
+         * Gives the detached attributes not written by this save the new time to live of
+         * the session hash. Only called when the expiration minute of the session moved,
+         * the five minutes the keys outlive the session cover the saves in between.
+         */
+        private void expireDetachedAttributes(String sessionId, Set<String> written) {
+            if (this.storedDetachedAttributes.size() == written.size()) {
+                return;
+            }
+            long timeToLive = getDetachedAttributeTimeToLive(this);
+            List<byte[]> keys = new ArrayList<>(this.storedDetachedAttributes.size());
+            for (String attributeName : this.storedDetachedAttributes) {
+                if (!written.contains(attributeName)) {
+                    keys.add(serializeKey(getDetachedAttributeKey(sessionId, attributeName)));
+                }
+            }
+            CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations.execute((RedisCallback<Object>) (connection) -> {
+                for (byte[] key : keys) {
+                    if (timeToLive < 0) {
+                        connection.persist(key);
+                    }
+                    else {
+                        connection.expire(key, timeToLive);
+                    }
+                }
+                return null;
+            });
+        }
+
+        /**
+         * Whether a principal attribute is in the delta with a value other than the
+         * untouched one read from Redis.
+         */
+        private boolean isPrincipalChanged() {
+            return isChangedInDelta(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME)
+                    || isChangedInDelta(SPRING_SECURITY_CONTEXT);
+        }
+
+        private boolean isChangedInDelta(String attributeName) {
+            String attributeKey = getSessionAttrNameKey(attributeName);
+            Object attributeValue = this.delta.get(attributeKey);
+            return this.delta.containsKey(attributeKey) && !(attributeValue instanceof SerializedAttribute)
+                    && attributeValue != DetachedAttribute.INSTANCE;
+        }
+
+        /**
+         * Moves the session between the sets of the secondary index values that changed
+         * since it was loaded or last saved.
+         */
+        private void saveSecondaryIndexes(String sessionId) {
+            Map<String, String> indexes = this.indexesToSave;
+            Set<String> indexNames = new HashSet<>(indexes.keySet());
+            indexNames.addAll(this.originalIndexes.keySet());
+            indexNames.remove(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME);
+            RedisOperations<Object, Object> operations = CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations;
+            for (String indexName : indexNames) {
+                String originalValue = this.originalIndexes.get(indexName);
+                String value = indexes.get(indexName);
+                if (Objects.equals(originalValue, value)) {
+                    continue;
+                }
+                if (originalValue != null) {
+                    operations.boundSetOps(getIndexKey(indexName, originalValue)).remove(sessionId);
+                }
+                if (value != null) {
+                    operations.boundSetOps(getIndexKey(indexName, value)).add(sessionId);
+                }
+            }
+            this.originalIndexes = indexes;
         }
 
         private void saveChangeSessionId() {
@@ -571,6 +2898,7 @@ public class CustomSIDRedisIndexedSessionRepository
                 return;
             }
             if (!this.isNew) {
+                resolveOriginalPrincipalName();
                 String originalSessionIdKey = getSessionKey(this.originalSessionId);
                 String sessionIdKey = getSessionKey(sessionId);
                 try {
@@ -580,19 +2908,42 @@ public class CustomSIDRedisIndexedSessionRepository
                 catch (NonTransientDataAccessException ex) {
                     handleErrNoSuchKeyError(ex);
                 }
-                String originalExpiredKey = getExpiredKey(this.originalSessionId);
-                String expiredKey = getExpiredKey(sessionId);
-                try {
-                    CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations.rename(originalExpiredKey, expiredKey);
+                if (isKeyspaceExpiration()) {
+                    String originalExpiredKey = getExpiredKey(this.originalSessionId);
+                    String expiredKey = getExpiredKey(sessionId);
+                    try {
+                        CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations.rename(originalExpiredKey,
+                                expiredKey);
+                    }
+                    catch (NonTransientDataAccessException ex) {
+                        handleErrNoSuchKeyError(ex);
+                    }
                 }
-                catch (NonTransientDataAccessException ex) {
-                    handleErrNoSuchKeyError(ex);
+                for (String attributeName : this.storedDetachedAttributes) {
+                    try {
+                        CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations.rename(
+                                getDetachedAttributeKey(this.originalSessionId, attributeName),
+                                getDetachedAttributeKey(sessionId, attributeName));
+                    }
+                    catch (NonTransientDataAccessException ex) {
+                        handleErrNoSuchKeyError(ex);
+                    }
                 }
+                CustomSIDRedisIndexedSessionRepository.this.expirationPolicy.onSessionIdChanged(this.originalSessionId,
+                        this);
                 if (this.originalPrincipalName != null) {
-                    String originalPrincipalRedisKey = getPrincipalKey(this.originalPrincipalName);
-                    CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations.boundSetOps(originalPrincipalRedisKey)
+                    removeFromPrincipalIndex(this.originalPrincipalName, this.originalSessionId);
+                    addToPrincipalIndex(this.originalPrincipalName, sessionId, getLastAccessedTime());
+                }
+                for (Map.Entry<String, String> index : this.originalIndexes.entrySet()) {
+                    if (index.getValue() == null
+                            || FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME.equals(index.getKey())) {
+                        continue;
+                    }
+                    String indexKey = getIndexKey(index.getKey(), index.getValue());
+                    CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations.boundSetOps(indexKey)
                             .remove(this.originalSessionId);
-                    CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations.boundSetOps(originalPrincipalRedisKey)
+                    CustomSIDRedisIndexedSessionRepository.this.sessionRedisOperations.boundSetOps(indexKey)
                             .add(sessionId);
                 }
             }
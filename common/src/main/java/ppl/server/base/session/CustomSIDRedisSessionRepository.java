@@ -1,17 +1,64 @@
 package ppl.server.base.session;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.session.*;
 import ppl.common.utils.string.Strings;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 
-public class CustomSIDRedisSessionRepository implements SessionRepository<CustomSIDRedisSessionRepository.RedisSession> {
+public class CustomSIDRedisSessionRepository implements SessionRepository<CustomSIDRedisSessionRepository.RedisSession>,
+        DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(CustomSIDRedisSessionRepository.class);
 
     public static final String DEFAULT_KEY_NAMESPACE = "spring:session";
 
+    static final int WRITE_BEHIND_BATCH_SIZE = 100;
+
+    /**
+     * Saves a session in one call. KEYS are the key the session was stored under and its
+     * current key. ARGV are {@code 1} if the session must exist, the expiration time in
+     * milliseconds or an empty string for a session that never expires, and the number
+     * of fields to write, followed by the fields and values to write and then the fields
+     * to remove. Returns {@code 0} if the session must exist and does not, in which case
+     * nothing is written: the fields are only a delta, which must not be written onto a
+     * missing hash.
+     */
+    private static final RedisScript<Long> SAVE = new DefaultRedisScript<>(
+            "local exists = redis.call('exists', KEYS[1]) == 1 " +
+                    "if ARGV[1] == '1' and not exists then " +
+                    "return 0 " +
+                    "end " +
+                    "if KEYS[1] ~= KEYS[2] and exists then " +
+                    "redis.call('rename', KEYS[1], KEYS[2]) " +
+                    "end " +
+                    "local n = tonumber(ARGV[3]) " +
+                    "if n > 0 then " +
+                    "redis.call('hmset', KEYS[2], unpack(ARGV, 4, 3 + 2 * n)) " +
+                    "end " +
+                    "if #ARGV > 3 + 2 * n then " +
+                    "redis.call('hdel', KEYS[2], unpack(ARGV, 4 + 2 * n, #ARGV)) " +
+                    "end " +
+                    "if #ARGV > 3 then " +
+                    "if ARGV[2] == '' then " +
+                    "redis.call('persist', KEYS[2]) " +
+                    "else " +
+                    "redis.call('pexpireat', KEYS[2], ARGV[2]) " +
+                    "end " +
+                    "end " +
+                    "return 1", Long.class);
+
     private final RedisOperations<String, Object> sessionRedisOperations;
 
     private Duration defaultMaxInactiveInterval = Duration.ofSeconds(MapSession.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS);
@@ -24,6 +71,8 @@ public class CustomSIDRedisSessionRepository implements SessionRepository<Custom
 
     private SessionIdGenerator sessionIdGenerator = UuidSessionIdGenerator.getInstance();
 
+    private SessionWriteBehindFlusher<RedisSession> writeBehindFlusher;
+
     public CustomSIDRedisSessionRepository(RedisOperations<String, Object> sessionRedisOperations) {
         Objects.requireNonNull(sessionRedisOperations, "sessionRedisOperations mut not be null");
         this.sessionRedisOperations = sessionRedisOperations;
@@ -64,6 +113,46 @@ public class CustomSIDRedisSessionRepository implements SessionRepository<Custom
         this.sessionIdGenerator = sessionIdGenerator;
     }
 
+    /**
+     * Sets up write-behind saves. {@link #save(RedisSession)} of a session that exists in
+     * Redis only hands its changes to a flusher, which merges the changes of consecutive
+     * saves of the same session and writes them in pipelined batches at most the given
+     * interval later. A save whose session was invalidated meanwhile is dropped instead
+     * of failing. New sessions and session id changes are written right away. Applies to
+     * {@link FlushMode#ON_SAVE} only.
+     * @param flushInterval the longest changes wait before they are written
+     * @param maxPending the number of sessions waiting to be written from which saves
+     * are written by the request thread again
+     */
+    public void setWriteBehind(Duration flushInterval, int maxPending) {
+        if (this.writeBehindFlusher != null) {
+            this.writeBehindFlusher.shutdown();
+        }
+        this.writeBehindFlusher = new SessionWriteBehindFlusher<>(flushInterval, WRITE_BEHIND_BATCH_SIZE, maxPending,
+                RedisSession::mergedWith, this::writeBehind);
+    }
+
+    /**
+     * @return the number of sessions whose changes wait to be written
+     */
+    public int getWriteBehindPendingCount() {
+        return (this.writeBehindFlusher != null) ? this.writeBehindFlusher.getPendingCount() : 0;
+    }
+
+    /**
+     * @return the number of saves merged into an earlier save not written yet
+     */
+    public long getWriteBehindMergedCount() {
+        return (this.writeBehindFlusher != null) ? this.writeBehindFlusher.getMergedCount() : 0;
+    }
+
+    /**
+     * @return the number of write-behind saves that failed and were dropped
+     */
+    public long getWriteBehindFailedCount() {
+        return (this.writeBehindFlusher != null) ? this.writeBehindFlusher.getFailedCount() : 0;
+    }
+
     @Override
     public RedisSession createSession() {
         MapSession cached = new MapSession(sessionIdGenerator.generate());
@@ -73,20 +162,59 @@ public class CustomSIDRedisSessionRepository implements SessionRepository<Custom
         return session;
     }
 
+    /**
+     * Saves the session with a single script call that checks the session still exists,
+     * renames it if its id changed, writes the delta and sets the expiration, all
+     * atomically.
+     * @param session the session to save
+     * @throws IllegalStateException if the session was invalidated
+     */
     @Override
     public void save(RedisSession session) {
-        if (!session.isNew) {
-            String key = getSessionKey(session.hasChangedSessionId() ? session.originalSessionId : session.getId());
-            Boolean sessionExists = this.sessionRedisOperations.hasKey(key);
-            if (sessionExists == null || !sessionExists) {
-                throw new IllegalStateException("Session was invalidated");
+        if (this.writeBehindFlusher != null) {
+            if (session.isWriteBehind()) {
+                if (!session.delta.isEmpty()) {
+                    this.writeBehindFlusher.submit(session.getId(), session.detach());
+                }
+                return;
+            }
+            this.writeBehindFlusher.flush(session.originalSessionId);
+        }
+        if (!session.save(true)) {
+            throw new IllegalStateException("Session was invalidated");
+        }
+    }
+
+    /**
+     * Writes the changes of sessions handed over by write-behind saves in one pipelined
+     * batch.
+     */
+    private void writeBehind(List<RedisSession> sessions) {
+        // a pipelined EVALSHA cannot fall back to EVAL, the script has to be loaded first
+        this.sessionRedisOperations.execute((RedisCallback<String>) (connection) -> connection.scriptingCommands()
+                .scriptLoad(toBytes(SAVE.getScriptAsString())));
+        List<Object> results = this.sessionRedisOperations.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                for (RedisSession session : sessions) {
+                    session.executeSave(true);
+                }
+                return null;
+            }
+        });
+        for (int i = 0; i < sessions.size(); i++) {
+            if (Long.valueOf(0).equals(results.get(i))) {
+                log.debug("Dropped the write of invalidated session " + sessions.get(i).getId());
             }
         }
-        session.save();
     }
 
     @Override
     public RedisSession findById(String sessionId) {
+        RedisSession pending = (this.writeBehindFlusher != null) ? this.writeBehindFlusher.get(sessionId) : null;
+        if (pending != null) {
+            return pending.isExpired() ? null : new RedisSession(new MapSession(pending.cached), false);
+        }
         String key = getSessionKey(sessionId);
         Map<String, Object> entries = this.sessionRedisOperations.<String, Object>opsForHash().entries(key);
         if (entries.isEmpty()) {
@@ -102,10 +230,20 @@ public class CustomSIDRedisSessionRepository implements SessionRepository<Custom
 
     @Override
     public void deleteById(String sessionId) {
+        if (this.writeBehindFlusher != null) {
+            this.writeBehindFlusher.flush(sessionId);
+        }
         String key = getSessionKey(sessionId);
         this.sessionRedisOperations.delete(key);
     }
 
+    @Override
+    public void destroy() {
+        if (this.writeBehindFlusher != null) {
+            this.writeBehindFlusher.shutdown();
+        }
+    }
+
     public RedisOperations<String, Object> getSessionRedisOperations() {
         return this.sessionRedisOperations;
     }
@@ -118,11 +256,15 @@ public class CustomSIDRedisSessionRepository implements SessionRepository<Custom
         return RedisSessionMapper.ATTRIBUTE_PREFIX + attributeName;
     }
 
+    private static byte[] toBytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
     final class RedisSession implements Session {
 
         private final MapSession cached;
 
-        private final Map<String, Object> delta = new HashMap<>();
+        private Map<String, Object> delta = new HashMap<>();
 
         private boolean isNew;
 
@@ -217,8 +359,8 @@ public class CustomSIDRedisSessionRepository implements SessionRepository<Custom
         }
 
         private void flushIfRequired() {
-            if (CustomSIDRedisSessionRepository.this.flushMode == FlushMode.IMMEDIATE) {
-                save();
+            if (CustomSIDRedisSessionRepository.this.flushMode == FlushMode.IMMEDIATE && !save(false)) {
+                log.debug("Dropped the immediate flush of invalidated session " + getId());
             }
         }
 
@@ -226,35 +368,86 @@ public class CustomSIDRedisSessionRepository implements SessionRepository<Custom
             return !getId().equals(this.originalSessionId);
         }
 
-        private void save() {
-            saveChangeSessionId();
-            saveDelta();
-            if (this.isNew) {
-                this.isNew = false;
-            }
+        private boolean isWriteBehind() {
+            return !this.isNew && !hasChangedSessionId()
+                    && CustomSIDRedisSessionRepository.this.flushMode == FlushMode.ON_SAVE;
         }
 
-        private void saveChangeSessionId() {
-            if (hasChangedSessionId()) {
-                if (!this.isNew) {
-                    String originalSessionIdKey = getSessionKey(this.originalSessionId);
-                    String sessionIdKey = getSessionKey(getId());
-                    CustomSIDRedisSessionRepository.this.sessionRedisOperations.rename(originalSessionIdKey, sessionIdKey);
-                }
-                this.originalSessionId = getId();
-            }
+        /**
+         * Hands the changes of this session over to a copy to be written later, and goes on
+         * as if they were written.
+         */
+        private RedisSession detach() {
+            RedisSession snapshot = new RedisSession(new MapSession(this.cached), false);
+            snapshot.delta = this.delta;
+            this.delta = new HashMap<>();
+            return snapshot;
         }
 
-        private void saveDelta() {
-            if (this.delta.isEmpty()) {
-                return;
+        /**
+         * Merges the snapshot of a later save into this one, which is not written yet.
+         */
+        private RedisSession mergedWith(RedisSession later) {
+            Map<String, Object> delta = new HashMap<>(this.delta);
+            delta.putAll(later.delta);
+            later.delta = delta;
+            return later;
+        }
+
+        /**
+         * Runs the {@link #SAVE} script, returns {@code false} if the session was not new
+         * and no longer exists. Only a new session carries all its fields, the changes of
+         * any other session are dropped rather than written as a partial hash, and are
+         * kept for the next save to fail on.
+         * @param mustExist whether to check the session still exists even if there is
+         * nothing to write
+         */
+        private boolean save(boolean mustExist) {
+            boolean checkExists = !this.isNew;
+            if ((!mustExist || this.isNew) && !hasChangedSessionId() && this.delta.isEmpty()) {
+                return true;
+            }
+            Long saved = executeSave(checkExists);
+            if (saved == null || saved == 0) {
+                return false;
             }
-            String key = getSessionKey(getId());
-            CustomSIDRedisSessionRepository.this.sessionRedisOperations.opsForHash().putAll(key, new HashMap<>(this.delta));
-            CustomSIDRedisSessionRepository.this.sessionRedisOperations.expireAt(key,
-                    Date.from(Instant.ofEpochMilli(getLastAccessedTime().toEpochMilli())
-                            .plusSeconds(getMaxInactiveInterval().getSeconds())));
+            this.originalSessionId = getId();
             this.delta.clear();
+            this.isNew = false;
+            return true;
+        }
+
+        /**
+         * Runs the {@link #SAVE} script without looking at its result, which is
+         * {@code null} when called in a pipeline.
+         */
+        @SuppressWarnings("unchecked")
+        private Long executeSave(boolean checkExists) {
+            RedisOperations<String, Object> operations = CustomSIDRedisSessionRepository.this.sessionRedisOperations;
+            RedisSerializer<Object> hashKeySerializer = (RedisSerializer<Object>) operations.getHashKeySerializer();
+            RedisSerializer<Object> hashValueSerializer = (RedisSerializer<Object>) operations.getHashValueSerializer();
+            List<byte[]> fields = new ArrayList<>(this.delta.size() * 2);
+            List<byte[]> removed = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : this.delta.entrySet()) {
+                byte[] field = hashKeySerializer.serialize(entry.getKey());
+                if (entry.getValue() == null) {
+                    removed.add(field);
+                }
+                else {
+                    fields.add(field);
+                    fields.add(hashValueSerializer.serialize(entry.getValue()));
+                }
+            }
+            List<Object> args = new ArrayList<>(3 + fields.size() + removed.size());
+            args.add(toBytes(checkExists ? "1" : "0"));
+            args.add(toBytes(getMaxInactiveInterval().isNegative() ? ""
+                    : String.valueOf(getLastAccessedTime().plus(getMaxInactiveInterval()).toEpochMilli())));
+            args.add(toBytes(String.valueOf(fields.size() / 2)));
+            args.addAll(fields);
+            args.addAll(removed);
+            String originalKey = getSessionKey(this.isNew ? getId() : this.originalSessionId);
+            return operations.execute(SAVE, RedisSerializer.byteArray(), null,
+                    Arrays.asList(originalKey, getSessionKey(getId())), args.toArray());
         }
 
     }
@@ -0,0 +1,282 @@
+package ppl.server.base.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.session.MapSession;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * The local side of a session repository running with its Redis calls cut off by a
+ * {@link SessionCircuitBreaker}. It keeps copies of the recently used sessions to serve
+ * reads from, and queues the writes that could not go to Redis, merging the writes of
+ * the same session, until they are replayed once Redis is back.
+ * </p>
+ * <p>
+ * Both the copies and the queued writes are bounded by the same number of sessions.
+ * The least recently used copies are evicted, writes of further sessions are dropped.
+ * A queued delete is kept as a {@code null} write.
+ * </p>
+ * @param <S> the type of the session snapshots written
+ */
+final class DegradedSessionStore<S> {
+
+    private static final Logger log = LoggerFactory.getLogger(DegradedSessionStore.class);
+
+    private static final int REPLAY_LOCK_STRIPES = 64;
+
+    private final int maxSessions;
+
+    private final LinkedHashMap<String, MapSession> recent = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<String, S> queued = new LinkedHashMap<>();
+
+    /**
+     * The writes taken from the queue and being replayed, still served by
+     * {@link #get(String)}.
+     */
+    private final Map<String, S> replaying = new HashMap<>();
+
+    /**
+     * Striped by session id. Held while a queued write is replayed, so that a write of a
+     * session never overtakes the replay of its earlier one, while the writes of other
+     * sessions go on.
+     */
+    private final ReentrantLock[] replayLocks = new ReentrantLock[REPLAY_LOCK_STRIPES];
+
+    private final AtomicBoolean reconciling = new AtomicBoolean();
+
+    private final BinaryOperator<S> merger;
+
+    private final Function<S, MapSession> viewer;
+
+    private final BiConsumer<String, S> writer;
+
+    private final LongAdder queuedCount = new LongAdder();
+
+    private final LongAdder droppedCount = new LongAdder();
+
+    private final LongAdder replayedCount = new LongAdder();
+
+    /**
+     * @param maxSessions the maximum number of sessions kept and of writes queued
+     * @param merger merges a later snapshot into the queued one of the same session
+     * @param viewer returns the session a snapshot leaves behind once written
+     * @param writer writes a snapshot to Redis, or deletes the session for {@code null}
+     */
+    DegradedSessionStore(int maxSessions, BinaryOperator<S> merger, Function<S, MapSession> viewer,
+                         BiConsumer<String, S> writer) {
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("maxSessions must be positive");
+        }
+        this.maxSessions = maxSessions;
+        for (int i = 0; i < this.replayLocks.length; i++) {
+            this.replayLocks[i] = new ReentrantLock();
+        }
+        this.merger = merger;
+        this.viewer = viewer;
+        this.writer = writer;
+    }
+
+    /**
+     * Keeps a copy of a session read from or written to Redis.
+     */
+    synchronized void remember(String sessionId, MapSession session) {
+        if (this.queued.containsKey(sessionId)) {
+            return;
+        }
+        this.recent.put(sessionId, session);
+        while (this.recent.size() > this.maxSessions) {
+            String eldest = this.recent.keySet().iterator().next();
+            this.recent.remove(eldest);
+        }
+    }
+
+    /**
+     * Whether the session has a queued write, or one being replayed, which Redis does not
+     * know about yet.
+     */
+    synchronized boolean isQueued(String sessionId) {
+        return this.queued.containsKey(sessionId) || this.replaying.containsKey(sessionId);
+    }
+
+    /**
+     * Returns a copy of the session as left by its queued write or as last seen in Redis.
+     * @param sessionId the id of the session
+     * @return the session, or {@code null} if it is unknown or deleted
+     */
+    synchronized MapSession get(String sessionId) {
+        if (this.queued.containsKey(sessionId)) {
+            S snapshot = this.queued.get(sessionId);
+            return (snapshot != null) ? this.viewer.apply(snapshot) : null;
+        }
+        if (this.replaying.containsKey(sessionId)) {
+            S snapshot = this.replaying.get(sessionId);
+            return (snapshot != null) ? this.viewer.apply(snapshot) : null;
+        }
+        MapSession session = this.recent.get(sessionId);
+        return (session != null) ? new MapSession(session) : null;
+    }
+
+    /**
+     * Queues the write of a session, merged into the queued write it was read from.
+     * @param originalSessionId the id the session was read with
+     * @param sessionId the current id of the session
+     * @param snapshot the snapshot to write
+     * @return whether the write was queued, {@code false} if too many writes are queued
+     */
+    synchronized boolean queue(String originalSessionId, String sessionId, S snapshot) {
+        if (this.queued.containsKey(originalSessionId)) {
+            S earlier = this.queued.remove(originalSessionId);
+            if (earlier != null) {
+                snapshot = this.merger.apply(earlier, snapshot);
+            }
+        }
+        else if (this.queued.size() >= this.maxSessions) {
+            this.droppedCount.increment();
+            return false;
+        }
+        this.recent.remove(originalSessionId);
+        this.recent.remove(sessionId);
+        this.queued.put(sessionId, snapshot);
+        this.queuedCount.increment();
+        return true;
+    }
+
+    /**
+     * Queues the delete of a session, which replaces its queued write if any.
+     * @param sessionId the id of the session
+     * @return whether the delete was queued, {@code false} if too many writes are queued
+     */
+    synchronized boolean queueDelete(String sessionId) {
+        this.recent.remove(sessionId);
+        if (!this.queued.containsKey(sessionId) && this.queued.size() >= this.maxSessions) {
+            this.droppedCount.increment();
+            return false;
+        }
+        this.queued.remove(sessionId);
+        this.queued.put(sessionId, null);
+        this.queuedCount.increment();
+        return true;
+    }
+
+    /**
+     * Replays the queued write of a session, if there is one. A write that fails on Redis
+     * is queued again, ahead of any write of the session queued since. A write that fails
+     * for any other reason is dropped. Returns right away, without locking, if the
+     * session has nothing queued.
+     * @param sessionId the id of the session
+     */
+    void replay(String sessionId) {
+        if (!isQueued(sessionId)) {
+            return;
+        }
+        ReentrantLock replayLock = this.replayLocks[(sessionId.hashCode() & 0x7fffffff) % this.replayLocks.length];
+        replayLock.lock();
+        try {
+            S snapshot;
+            synchronized (this) {
+                if (!this.queued.containsKey(sessionId)) {
+                    return;
+                }
+                snapshot = this.queued.remove(sessionId);
+                this.replaying.put(sessionId, snapshot);
+            }
+            try {
+                this.writer.accept(sessionId, snapshot);
+                this.replayedCount.increment();
+            }
+            catch (DataAccessException ex) {
+                requeue(sessionId, snapshot);
+                throw ex;
+            }
+            catch (RuntimeException ex) {
+                // not a Redis outage, replaying it again would fail the same way
+                this.droppedCount.increment();
+                log.warn("Dropped the queued write of session " + sessionId + ", it cannot be replayed.", ex);
+            }
+            finally {
+                synchronized (this) {
+                    this.replaying.remove(sessionId);
+                }
+            }
+        }
+        finally {
+            replayLock.unlock();
+        }
+    }
+
+    private synchronized void requeue(String sessionId, S snapshot) {
+        this.replaying.remove(sessionId);
+        if (!this.queued.containsKey(sessionId)) {
+            this.queued.put(sessionId, snapshot);
+        }
+        else if (snapshot != null && this.queued.get(sessionId) != null) {
+            this.queued.put(sessionId, this.merger.apply(snapshot, this.queued.get(sessionId)));
+        }
+    }
+
+    /**
+     * Starts replaying the queued writes, oldest first, unless a replay is already
+     * running. Stops at the first write that fails on Redis.
+     * @return {@code false} if a write failed
+     */
+    boolean reconcile() {
+        if (!this.reconciling.compareAndSet(false, true)) {
+            return true;
+        }
+        try {
+            List<String> sessionIds;
+            synchronized (this) {
+                sessionIds = new ArrayList<>(this.queued.keySet());
+            }
+            for (String sessionId : sessionIds) {
+                replay(sessionId);
+            }
+            if (!sessionIds.isEmpty()) {
+                log.info("Replayed " + sessionIds.size() + " session writes queued while Redis was unavailable");
+            }
+            return true;
+        }
+        catch (RuntimeException ex) {
+            log.warn("Error replaying session writes queued while Redis was unavailable.", ex);
+            return false;
+        }
+        finally {
+            this.reconciling.set(false);
+        }
+    }
+
+    boolean isReconciling() {
+        return this.reconciling.get();
+    }
+
+    synchronized int getQueuedSize() {
+        return this.queued.size();
+    }
+
+    long getQueuedCount() {
+        return this.queuedCount.sum();
+    }
+
+    long getDroppedCount() {
+        return this.droppedCount.sum();
+    }
+
+    long getReplayedCount() {
+        return this.replayedCount.sum();
+    }
+
+}
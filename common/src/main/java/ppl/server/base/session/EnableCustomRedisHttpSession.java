@@ -30,4 +30,169 @@ public @interface EnableCustomRedisHttpSession {
 
     SaveMode saveMode() default SaveMode.ON_SET_ATTRIBUTE;
 
+    /**
+     * Send the delta, the principal index update and the expiration bookkeeping of a
+     * session as one pipelined batch instead of one round trip per command.
+     * @return whether sessions are saved in a single round trip
+     */
+    boolean pipelinedSave() default false;
+
+    /**
+     * Delete sessions with a script, in one call and without reading them first, see
+     * {@link CustomSIDRedisIndexedSessionRepository#setScriptedDelete(boolean)}.
+     * @return whether sessions are deleted with a script
+     */
+    boolean scriptedDelete() default false;
+
+    /**
+     * Keep the principal index of a principal as a sorted set scored by last access,
+     * compacted in the background, see
+     * {@link CustomSIDRedisIndexedSessionRepository#setSortedPrincipalIndex(boolean)}.
+     * @return whether the principal index is sorted
+     */
+    boolean sortedPrincipalIndex() default false;
+
+    /**
+     * The maximum number of sessions of a principal, beyond which the least recently
+     * used ones are invalidated. Requires {@link #sortedPrincipalIndex()}. A value of
+     * {@code 0} sets no maximum.
+     * @return the maximum number of sessions per principal
+     */
+    int maxSessionsPerPrincipal() default 0;
+
+    /**
+     * The maximum number of sessions kept in the in-process cache in front of
+     * {@code findById}. A value of {@code 0} disables the cache.
+     * @return the maximum number of locally cached sessions
+     */
+    int localCacheMaxEntries() default 0;
+
+    /**
+     * The maximum number of bytes, as stored in Redis, of the locally cached sessions. A
+     * value of {@code 0} bounds the cache by entry count only.
+     * @return the maximum number of bytes of locally cached sessions
+     */
+    long localCacheMaxBytes() default 0;
+
+    /**
+     * How long a loaded session may be served from the in-process cache before it is
+     * read from Redis again.
+     * @return the time to live of locally cached sessions in seconds
+     */
+    int localCacheTimeToLiveInSeconds() default CustomRedisHttpSessionConfiguration.DEFAULT_LOCAL_CACHE_TIME_TO_LIVE_SECONDS;
+
+    /**
+     * How session expiration is tracked. {@link SessionExpirationStrategy#SORTED_SET}
+     * does not rely on Redis keyspace notifications.
+     * @return the session expiration strategy
+     */
+    SessionExpirationStrategy expirationStrategy() default SessionExpirationStrategy.MINUTE_BUCKETS;
+
+    /**
+     * Whether each tick of {@link #cleanupCron()} is run by a single node elected through
+     * a lease in Redis rather than by every node.
+     * @return whether the cleanup is coordinated across nodes
+     */
+    boolean cleanupCoordinated() default true;
+
+    /**
+     * The number of threads handling session destroyed events in pipelined batches, off
+     * the Redis listener thread. A value of {@code 0} handles them on the listener thread.
+     * @return the number of event processing threads
+     */
+    int eventProcessingThreads() default 0;
+
+    /**
+     * The maximum number of destroyed events waiting for the event processing threads,
+     * beyond which the Redis listener thread blocks.
+     * @return the event queue capacity
+     */
+    int eventQueueCapacity() default CustomRedisHttpSessionConfiguration.DEFAULT_EVENT_QUEUE_CAPACITY;
+
+    /**
+     * How far, in seconds, the last accessed time of a session has to move before it is
+     * written to Redis again. A touch within this granularity that stays in the same
+     * expiration bucket is not written, and a save with nothing else to write is skipped.
+     * A value of {@code 0} writes every touch.
+     * @return the touch granularity in seconds
+     */
+    int touchGranularityInSeconds() default 0;
+
+    /**
+     * Whether session keys carry the session id in a hash tag, so that a session hash and
+     * its expires key share a Redis Cluster slot. Sessions stored under the untagged keys
+     * are still found and are migrated on their next save.
+     * @return whether to use the hash tagged key layout
+     */
+    boolean hashTaggedKeys() default false;
+
+    /**
+     * Serialized size, in bytes, from which attribute values are stored deflated, see
+     * {@link CompressingRedisSerializer}. A negative value disables compression. Values
+     * stored uncompressed stay readable either way.
+     * @return the compression threshold in bytes
+     */
+    int compressionThresholdInBytes() default -1;
+
+    /**
+     * Names of the session attributes stored under keys of their own and read only when
+     * asked for, see
+     * {@link CustomSIDRedisIndexedSessionRepository#setDetachedAttributes(java.util.Collection)}.
+     * @return the names of the detached attributes
+     */
+    String[] detachedAttributes() default {};
+
+    /**
+     * How long, in milliseconds, the changes of a saved session may wait to be written
+     * by a background thread, merged with later saves of the same session, see
+     * {@link CustomSIDRedisIndexedSessionRepository#setWriteBehind(java.time.Duration, int)}.
+     * Applies to {@link FlushMode#ON_SAVE}. A value of {@code 0} writes on the request
+     * thread.
+     * @return the write-behind flush interval in milliseconds
+     */
+    int writeBehindFlushIntervalInMillis() default 0;
+
+    /**
+     * The number of sessions waiting to be written behind from which saves are written
+     * on the request thread again.
+     * @return the maximum number of sessions waiting to be written
+     */
+    int writeBehindMaxPending() default CustomSIDRedisIndexedSessionRepository.DEFAULT_WRITE_BEHIND_MAX_PENDING;
+
+    /**
+     * The number of consecutive failed or slow Redis calls from which sessions are served
+     * and saved locally until Redis recovers, see
+     * {@link CustomSIDRedisIndexedSessionRepository#setCircuitBreaker(int, java.time.Duration, java.time.Duration, int)}.
+     * A value of {@code 0} disables the circuit breaker.
+     * @return the circuit breaker failure threshold
+     */
+    int circuitBreakerFailureThreshold() default 0;
+
+    /**
+     * How long, in milliseconds, a Redis call may take before it counts as failed.
+     * @return the slow call threshold in milliseconds
+     */
+    int circuitBreakerSlowCallThresholdInMillis() default CustomRedisHttpSessionConfiguration.DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD_MILLIS;
+
+    /**
+     * How long, in seconds, the circuit breaker stays open before Redis is tried again.
+     * @return the open duration in seconds
+     */
+    int circuitBreakerOpenDurationInSeconds() default CustomRedisHttpSessionConfiguration.DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_SECONDS;
+
+    /**
+     * The maximum number of sessions kept locally for the circuit breaker, and of writes
+     * queued while it is open.
+     * @return the maximum number of locally kept sessions
+     */
+    int circuitBreakerMaxLocalSessions() default CustomRedisHttpSessionConfiguration.DEFAULT_CIRCUIT_BREAKER_MAX_LOCAL_SESSIONS;
+
+    /**
+     * What is published when a new session is saved for the first time. With
+     * {@link SessionCreatedEventMode#AUTO}, nothing is published when the application has
+     * no {@link org.springframework.session.events.SessionCreatedEvent} listener.
+     * @return the session created event mode
+     */
+    SessionCreatedEventMode sessionCreatedEventMode() default SessionCreatedEventMode.FULL;
+
 }
@@ -0,0 +1,53 @@
+package ppl.server.base.session;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.session.MapSession;
+import org.springframework.session.SaveMode;
+
+import java.lang.annotation.*;
+
+/**
+ * The reactive counterpart of {@link EnableCustomRedisHttpSession}, exposing a
+ * {@link CustomSIDReactiveRedisSessionRepository} that shares its sessions with the
+ * blocking repositories. The startup fails if the blocking services use storage
+ * features the reactive repository does not support, see
+ * {@link CustomSIDReactiveRedisSessionRepository#checkLayout()}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Documented
+@Import(CustomRedisWebSessionConfiguration.class)
+@Configuration(proxyBeanMethods = false)
+public @interface EnableCustomRedisWebSession {
+
+    int maxInactiveIntervalInSeconds() default MapSession.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS;
+
+    String redisNamespace() default CustomSIDReactiveRedisSessionRepository.DEFAULT_NAMESPACE;
+
+    SaveMode saveMode() default SaveMode.ON_SET_ATTRIBUTE;
+
+    /**
+     * Whether session keys carry the session id in a hash tag, must match
+     * {@link EnableCustomRedisHttpSession#hashTaggedKeys()} of the blocking services.
+     * @return whether to use the hash tagged key layout
+     */
+    boolean hashTaggedKeys() default false;
+
+    /**
+     * Whether saves keep the expiration bookkeeping of the indexed repository up to date,
+     * so that blocking services neither expire shared sessions early nor miss their
+     * destroyed events.
+     * @return whether to maintain the indexed expiration bookkeeping
+     */
+    boolean indexedCompatible() default true;
+
+    /**
+     * Serialized size, in bytes, from which attribute values are stored deflated, must
+     * match {@link EnableCustomRedisHttpSession#compressionThresholdInBytes()} of the
+     * blocking services. A negative value disables compression.
+     * @return the compression threshold in bytes
+     */
+    int compressionThresholdInBytes() default -1;
+
+}
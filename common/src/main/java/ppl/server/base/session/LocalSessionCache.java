@@ -0,0 +1,183 @@
+package ppl.server.base.session;
+
+import org.springframework.session.MapSession;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * A bounded in-process cache of recently loaded sessions, used by
+ * {@link CustomSIDRedisIndexedSessionRepository} in front of the Redis lookup of
+ * {@code findById}. The cache is bounded by entry count and, optionally, by the number of
+ * bytes the cached sessions occupied in Redis. When either bound is exceeded the least
+ * recently used entries are evicted.
+ * </p>
+ * <p>
+ * Cached sessions are copied on the way in and on the way out, so callers never share a
+ * {@link MapSession} instance. Entries older than the configured time to live are dropped
+ * on access, which bounds staleness should an invalidation message be lost.
+ * </p>
+ */
+public class LocalSessionCache {
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    private final long timeToLiveInNanos;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    private final LongAdder invalidationCount = new LongAdder();
+
+    /**
+     * @param maxEntries the maximum number of cached sessions, must be positive
+     * @param maxBytes the maximum number of bytes of cached sessions, or a non-positive
+     * value for no byte bound
+     * @param timeToLive how long a loaded session may be served from the cache, or
+     * {@code null} for no limit
+     */
+    public LocalSessionCache(int maxEntries, long maxBytes, Duration timeToLive) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.timeToLiveInNanos = (timeToLive == null || timeToLive.isZero() || timeToLive.isNegative())
+                ? Long.MAX_VALUE : timeToLive.toNanos();
+    }
+
+    MapSession get(String sessionId) {
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(sessionId);
+            if (entry != null && isStale(entry)) {
+                remove(sessionId);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            this.missCount.increment();
+            return null;
+        }
+        this.hitCount.increment();
+        return new MapSession(entry.session);
+    }
+
+    void put(String sessionId, MapSession session, long weight) {
+        if (this.maxBytes > 0 && weight > this.maxBytes) {
+            return;
+        }
+        Entry entry = new Entry(new MapSession(session), weight, System.nanoTime());
+        synchronized (this) {
+            remove(sessionId);
+            this.entries.put(sessionId, entry);
+            this.bytes += weight;
+            evictIfNecessary();
+        }
+    }
+
+    /**
+     * Replaces the cached copy of a session whose attributes did not change, keeping its
+     * weight. Does nothing if the session is not cached.
+     */
+    void refresh(String sessionId, MapSession session) {
+        MapSession copy = new MapSession(session);
+        synchronized (this) {
+            Entry entry = this.entries.get(sessionId);
+            if (entry != null) {
+                this.entries.put(sessionId, new Entry(copy, entry.weight, entry.loadedAt));
+            }
+        }
+    }
+
+    void invalidate(String sessionId) {
+        synchronized (this) {
+            if (remove(sessionId) == null) {
+                return;
+            }
+        }
+        this.invalidationCount.increment();
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+        this.bytes = 0;
+    }
+
+    public long getHitCount() {
+        return this.hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return this.missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.sum();
+    }
+
+    public long getInvalidationCount() {
+        return this.invalidationCount.sum();
+    }
+
+    public synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    private boolean isStale(Entry entry) {
+        return System.nanoTime() - entry.loadedAt > this.timeToLiveInNanos;
+    }
+
+    private Entry remove(String sessionId) {
+        Entry removed = this.entries.remove(sessionId);
+        if (removed != null) {
+            this.bytes -= removed.weight;
+        }
+        return removed;
+    }
+
+    private void evictIfNecessary() {
+        Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+        while (it.hasNext() && (this.entries.size() > this.maxEntries
+                || (this.maxBytes > 0 && this.bytes > this.maxBytes))) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            this.bytes -= eldest.weight;
+            this.evictionCount.increment();
+        }
+    }
+
+    private static final class Entry {
+
+        private final MapSession session;
+
+        private final long weight;
+
+        private final long loadedAt;
+
+        Entry(MapSession session, long weight, long loadedAt) {
+            this.session = session;
+            this.weight = weight;
+            this.loadedAt = loadedAt;
+        }
+
+    }
+
+}
@@ -3,21 +3,34 @@ package ppl.server.base.session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.redis.core.BoundSetOperations;
+import org.springframework.data.redis.core.Cursor;
 import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.session.Session;
 
-import java.util.Calendar;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Set;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
-final class RedisSessionExpirationPolicy {
+final class RedisSessionExpirationPolicy implements SessionExpirationPolicy {
 
     private static final Logger log = LoggerFactory.getLogger(RedisSessionExpirationPolicy.class);
 
-    private static final String SESSION_EXPIRES_PREFIX = "expires:";
+    static final String SESSION_EXPIRES_PREFIX = "expires:";
+
+    static final int DEFAULT_CLEANUP_BATCH_SIZE = 1000;
+
+    private static final long ONE_MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * An expiration bucket expires five minutes after the minute it tracks, so there is
+     * nothing left to catch up on further back than this.
+     */
+    private static final long MAX_CATCH_UP = TimeUnit.MINUTES.toMillis(10);
 
     private final RedisOperations<Object, Object> redis;
 
@@ -25,22 +38,41 @@ final class RedisSessionExpirationPolicy {
 
     private final Function<String, String> lookupSessionKey;
 
+    private final Function<String, String> lookupExpiresKey;
+
+    private final Supplier<String> lookupCleanupKey;
+
+    private int cleanupBatchSize = DEFAULT_CLEANUP_BATCH_SIZE;
+
     RedisSessionExpirationPolicy(RedisOperations<Object, Object> sessionRedisOperations,
-                                 Function<Long, String> lookupExpirationKey, Function<String, String> lookupSessionKey) {
+                                 Function<Long, String> lookupExpirationKey, Function<String, String> lookupSessionKey,
+                                 Function<String, String> lookupExpiresKey, Supplier<String> lookupCleanupKey) {
         super();
         this.redis = sessionRedisOperations;
         this.lookupExpirationKey = lookupExpirationKey;
         this.lookupSessionKey = lookupSessionKey;
+        this.lookupExpiresKey = lookupExpiresKey;
+        this.lookupCleanupKey = lookupCleanupKey;
     }
 
-    void onDelete(Session session) {
+    @Override
+    public void setCleanupBatchSize(int cleanupBatchSize) {
+        if (cleanupBatchSize <= 0) {
+            throw new IllegalArgumentException("cleanupBatchSize must be positive");
+        }
+        this.cleanupBatchSize = cleanupBatchSize;
+    }
+
+    @Override
+    public void onDelete(Session session) {
         long toExpire = roundUpToNextMinute(expiresInMillis(session));
         String expireKey = getExpirationKey(toExpire);
         String entryToRemove = SESSION_EXPIRES_PREFIX + session.getId();
         this.redis.boundSetOps(expireKey).remove(entryToRemove);
     }
 
-    void onExpirationUpdated(Long originalExpirationTimeInMilli, Session session) {
+    @Override
+    public void onExpirationUpdated(Long originalExpirationTimeInMilli, Session session) {
         String keyToExpire = SESSION_EXPIRES_PREFIX + session.getId();
         long toExpire = roundUpToNextMinute(expiresInMillis(session));
 
@@ -53,7 +85,7 @@ final class RedisSessionExpirationPolicy {
         }
 
         long sessionExpireInSeconds = session.getMaxInactiveInterval().getSeconds();
-        String sessionKey = getSessionKey(keyToExpire);
+        String sessionKey = getExpiresKey(session.getId());
 
         if (sessionExpireInSeconds < 0) {
             this.redis.boundValueOps(sessionKey).append("");
@@ -87,32 +119,82 @@ final class RedisSessionExpirationPolicy {
         return this.lookupSessionKey.apply(sessionId);
     }
 
-    void cleanExpiredSessions() {
+    String getExpiresKey(String sessionId) {
+        return this.lookupExpiresKey.apply(sessionId);
+    }
+
+    @Override
+    public void onSessionIdChanged(String originalSessionId, Session session) {
+        // the repository renames the expires key, stale bucket members are harmless
+    }
+
+    /**
+     * Cleans every expiration bucket since the last successful run, up to the previous
+     * minute. The last cleaned minute is kept in Redis, so a missed tick is caught up by
+     * the next run on any node.
+     */
+    @Override
+    public void cleanExpiredSessions() {
         long now = System.currentTimeMillis();
         long prevMin = roundDownMinute(now);
+        Long lastCleaned = getLastCleanedMinute();
+        long from = (lastCleaned != null) ? Math.max(lastCleaned + ONE_MINUTE, prevMin - MAX_CATCH_UP) : prevMin;
+        for (long minute = from; minute <= prevMin; minute += ONE_MINUTE) {
+            cleanExpiredSessions(minute);
+            this.redis.boundValueOps(this.lookupCleanupKey.get()).set(minute, MAX_CATCH_UP, TimeUnit.MILLISECONDS);
+        }
+    }
 
+    private Long getLastCleanedMinute() {
+        Object lastCleaned = this.redis.boundValueOps(this.lookupCleanupKey.get()).get();
+        return (lastCleaned instanceof Number) ? ((Number) lastCleaned).longValue() : null;
+    }
+
+    /**
+     * Walks one expiration bucket with SSCAN and touches its sessions in pipelined
+     * batches, so neither the bucket nor the touches are ever held in one piece.
+     */
+    private void cleanExpiredSessions(long minute) {
         if (log.isDebugEnabled()) {
-            log.debug("Cleaning up sessions expiring at " + new Date(prevMin));
+            log.debug("Cleaning up sessions expiring at " + new Date(minute));
         }
 
-        String expirationKey = getExpirationKey(prevMin);
-        Set<Object> sessionsToExpire = this.redis.boundSetOps(expirationKey).members();
-        sessionsToExpire = sessionsToExpire == null ? Collections.emptySet() : sessionsToExpire;
-        this.redis.delete(expirationKey);
-        for (Object session : sessionsToExpire) {
-            String sessionKey = getSessionKey((String) session);
-            touch(sessionKey);
+        String expirationKey = getExpirationKey(minute);
+        List<String> sessionKeys = new ArrayList<>(this.cleanupBatchSize);
+        ScanOptions options = ScanOptions.scanOptions().count(this.cleanupBatchSize).build();
+        try (Cursor<Object> sessionsToExpire = this.redis.opsForSet().scan(expirationKey, options)) {
+            while (sessionsToExpire.hasNext()) {
+                String member = (String) sessionsToExpire.next();
+                sessionKeys.add(getExpiresKey(member.substring(SESSION_EXPIRES_PREFIX.length())));
+                if (sessionKeys.size() >= this.cleanupBatchSize) {
+                    touch(sessionKeys);
+                    sessionKeys.clear();
+                }
+            }
         }
+        touch(sessionKeys);
+        this.redis.delete(expirationKey);
     }
 
     /**
      * By trying to access the session we only trigger a deletion if it the TTL is
      * expired. This is done to handle
      * https://github.com/spring-projects/spring-session/issues/93
-     * @param key the key
+     * @param keys the keys
      */
-    private void touch(String key) {
-        this.redis.hasKey(key);
+    private void touch(List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        this.redis.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                for (String key : keys) {
+                    RedisSessionExpirationPolicy.this.redis.hasKey(key);
+                }
+                return null;
+            }
+        });
     }
 
     static long expiresInMillis(Session session) {
@@ -122,21 +204,11 @@ final class RedisSessionExpirationPolicy {
     }
 
     static long roundUpToNextMinute(long timeInMs) {
-
-        Calendar date = Calendar.getInstance();
-        date.setTimeInMillis(timeInMs);
-        date.add(Calendar.MINUTE, 1);
-        date.clear(Calendar.SECOND);
-        date.clear(Calendar.MILLISECOND);
-        return date.getTimeInMillis();
+        return roundDownMinute(timeInMs) + ONE_MINUTE;
     }
 
     static long roundDownMinute(long timeInMs) {
-        Calendar date = Calendar.getInstance();
-        date.setTimeInMillis(timeInMs);
-        date.clear(Calendar.SECOND);
-        date.clear(Calendar.MILLISECOND);
-        return date.getTimeInMillis();
+        return timeInMs - Math.floorMod(timeInMs, ONE_MINUTE);
     }
 
 }
\ No newline at end of file
@@ -18,6 +18,11 @@ final class RedisSessionMapper implements Function<Map<String, Object>, MapSessi
 
     static final String ATTRIBUTE_PREFIX = "sessionAttr:";
 
+    /**
+     * Marks an attribute whose value is stored under a key of its own.
+     */
+    static final String DETACHED_ATTRIBUTE_PREFIX = "detachedAttr:";
+
     private final String sessionId;
 
     RedisSessionMapper(String sessionId) {
@@ -0,0 +1,162 @@
+package ppl.server.base.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * A circuit breaker around the Redis calls of a session repository. Calls that fail or
+ * take longer than the slow call threshold count as failures, and a run of consecutive
+ * failures opens the breaker. While it is open no call is let through, so request
+ * threads are served locally instead of blocking on Redis.
+ * </p>
+ * <p>
+ * Once the open duration has passed a single probe call is let through. The breaker
+ * closes if the probe succeeds in time and opens again otherwise.
+ * </p>
+ */
+public class SessionCircuitBreaker {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionCircuitBreaker.class);
+
+    public enum State {
+
+        CLOSED,
+
+        OPEN,
+
+        HALF_OPEN
+
+    }
+
+    private final int failureThreshold;
+
+    private final long slowCallThresholdInNanos;
+
+    private final long openDurationInNanos;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile long openedAt;
+
+    private final LongAdder openedCount = new LongAdder();
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    private final LongAdder slowCallCount = new LongAdder();
+
+    /**
+     * @param failureThreshold the number of consecutive failed or slow calls that opens
+     * the breaker
+     * @param slowCallThreshold the duration from which a call counts as failed
+     * @param openDuration how long the breaker stays open before it lets a probe call
+     * through
+     */
+    SessionCircuitBreaker(int failureThreshold, Duration slowCallThreshold, Duration openDuration) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failureThreshold must be positive");
+        }
+        if (slowCallThreshold.isNegative() || slowCallThreshold.isZero()) {
+            throw new IllegalArgumentException("slowCallThreshold must be positive");
+        }
+        if (openDuration.isNegative()) {
+            throw new IllegalArgumentException("openDuration must not be negative");
+        }
+        this.failureThreshold = failureThreshold;
+        this.slowCallThresholdInNanos = slowCallThreshold.toNanos();
+        this.openDurationInNanos = openDuration.toNanos();
+    }
+
+    /**
+     * Returns whether a call may go to Redis. A call let through must be reported with
+     * {@link #onSuccess(long)}, {@link #onFailure()} or {@link #onIgnored()}.
+     */
+    boolean tryAcquire() {
+        State current = this.state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN && System.nanoTime() - this.openedAt >= this.openDurationInNanos
+                && this.state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+            return true;
+        }
+        this.rejectedCount.increment();
+        return false;
+    }
+
+    /**
+     * Reports a call that returned, a slow one counts as failed.
+     * @param elapsedNanos how long the call took
+     * @return whether the call closed the breaker
+     */
+    boolean onSuccess(long elapsedNanos) {
+        if (elapsedNanos >= this.slowCallThresholdInNanos) {
+            this.slowCallCount.increment();
+            onFailure();
+            return false;
+        }
+        this.consecutiveFailures.set(0);
+        if (this.state.get() != State.CLOSED && this.state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+            log.info("Redis session calls recovered, circuit breaker closed");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reports a call that failed for a reason other than Redis, such as a session that
+     * cannot be deserialized. It does not count as a failure, but a probe call ends
+     * without deciding anything, and the next call is let through as a probe again.
+     */
+    void onIgnored() {
+        this.state.compareAndSet(State.HALF_OPEN, State.OPEN);
+    }
+
+    void onFailure() {
+        if (this.state.compareAndSet(State.HALF_OPEN, State.OPEN)) {
+            this.openedAt = System.nanoTime();
+            return;
+        }
+        if (this.consecutiveFailures.incrementAndGet() >= this.failureThreshold) {
+            this.openedAt = System.nanoTime();
+            if (this.state.compareAndSet(State.CLOSED, State.OPEN)) {
+                this.openedCount.increment();
+                log.warn("Redis session calls failing or slow, circuit breaker opened");
+            }
+        }
+    }
+
+    public State getState() {
+        return this.state.get();
+    }
+
+    /**
+     * @return the number of times the breaker opened after running closed
+     */
+    public long getOpenedCount() {
+        return this.openedCount.sum();
+    }
+
+    /**
+     * @return the number of calls not let through while the breaker was open
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.sum();
+    }
+
+    /**
+     * @return the number of calls that returned but took longer than the slow call
+     * threshold
+     */
+    public long getSlowCallCount() {
+        return this.slowCallCount.sum();
+    }
+
+}
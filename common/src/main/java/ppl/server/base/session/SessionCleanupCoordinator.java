@@ -0,0 +1,159 @@
+package ppl.server.base.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Elects a single node to run the expired session cleanup on each tick of the cleanup
+ * cron. Every tick has a lease in Redis of its own, keyed by the tick and taken with
+ * {@code SET NX PX}, so a node whose cron fires after the run of the tick is over does
+ * not run it again. The lease time is the interval between ticks, the lease is kept
+ * until it expires and is only released early, with a compare-and-delete, when the run
+ * fails, so that another node may retry the tick. If the holder dies, the next tick is
+ * run by whichever node takes its lease first, the cleanup policies then catch up on
+ * what was missed.
+ * </p>
+ * <p>
+ * Every run records the node that ran it, when it started, how long it took and whether
+ * it succeeded, see {@link SessionCleanupReport}.
+ * </p>
+ */
+final class SessionCleanupCoordinator {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionCleanupCoordinator.class);
+
+    static final Duration DEFAULT_LEASE_TIME = Duration.ofMinutes(1);
+
+    private static final String NODE_FIELD = "node";
+
+    private static final String START_TIME_FIELD = "startTime";
+
+    private static final String DURATION_FIELD = "duration";
+
+    private static final String SUCCEEDED_FIELD = "succeeded";
+
+    private static final RedisScript<Long> RELEASE = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+                    "return redis.call('del', KEYS[1]) " +
+                    "else " +
+                    "return 0 " +
+                    "end", Long.class);
+
+    private final RedisOperations<Object, Object> redis;
+
+    private final Supplier<String> lookupLeaseKey;
+
+    private final Supplier<String> lookupReportKey;
+
+    private final String nodeId;
+
+    private Duration leaseTime = DEFAULT_LEASE_TIME;
+
+    SessionCleanupCoordinator(RedisOperations<Object, Object> sessionRedisOperations, Supplier<String> lookupLeaseKey,
+                              Supplier<String> lookupReportKey, String nodeId) {
+        this.redis = sessionRedisOperations;
+        this.lookupLeaseKey = lookupLeaseKey;
+        this.lookupReportKey = lookupReportKey;
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Sets the interval between the ticks of the cleanup cron, which is also how long
+     * the lease of a tick is held.
+     */
+    void setLeaseTime(Duration leaseTime) {
+        if (leaseTime == null || leaseTime.isZero() || leaseTime.isNegative()) {
+            throw new IllegalArgumentException("leaseTime must be positive");
+        }
+        this.leaseTime = leaseTime;
+    }
+
+    /**
+     * Runs the cleanup if this node takes the lease, otherwise does nothing.
+     * @param cleanup the cleanup to run
+     * @return whether this node ran the cleanup
+     */
+    boolean runIfLeader(Runnable cleanup) {
+        long leaseMillis = this.leaseTime.toMillis();
+        // rounded, so that nodes whose crons fire slightly apart agree on the tick
+        long tick = Math.round((double) System.currentTimeMillis() / leaseMillis);
+        String leaseKey = this.lookupLeaseKey.get() + ":" + tick;
+        Boolean acquired = this.redis.opsForValue().setIfAbsent(leaseKey, this.nodeId, this.leaseTime);
+        if (!Boolean.TRUE.equals(acquired)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Skipping session cleanup, lease is held by " + this.redis.opsForValue().get(leaseKey));
+            }
+            return false;
+        }
+
+        Instant startTime = Instant.now();
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            cleanup.run();
+            succeeded = true;
+        }
+        finally {
+            Duration duration = Duration.ofNanos(System.nanoTime() - start);
+            report(new SessionCleanupReport(this.nodeId, startTime, duration, succeeded));
+            if (!succeeded) {
+                release(leaseKey);
+            }
+            else if (duration.compareTo(this.leaseTime) > 0) {
+                log.warn("Session cleanup took " + duration.toMillis() + "ms, longer than the "
+                        + leaseMillis + "ms between ticks, the next tick may have run concurrently");
+            }
+        }
+        return true;
+    }
+
+    SessionCleanupReport getLastReport() {
+        Map<Object, Object> entries = this.redis.opsForHash().entries(this.lookupReportKey.get());
+        if (entries == null || entries.isEmpty()) {
+            return null;
+        }
+        return new SessionCleanupReport((String) entries.get(NODE_FIELD),
+                Instant.ofEpochMilli(((Number) entries.get(START_TIME_FIELD)).longValue()),
+                Duration.ofMillis(((Number) entries.get(DURATION_FIELD)).longValue()),
+                Boolean.TRUE.equals(entries.get(SUCCEEDED_FIELD)));
+    }
+
+    private void report(SessionCleanupReport report) {
+        if (log.isInfoEnabled()) {
+            log.info("Session cleanup run by " + report.getNode() + " " + (report.isSucceeded() ? "finished" : "failed")
+                    + " in " + report.getDuration().toMillis() + "ms");
+        }
+        Map<Object, Object> entries = new HashMap<>();
+        entries.put(NODE_FIELD, report.getNode());
+        entries.put(START_TIME_FIELD, report.getStartTime().toEpochMilli());
+        entries.put(DURATION_FIELD, report.getDuration().toMillis());
+        entries.put(SUCCEEDED_FIELD, report.isSucceeded());
+        try {
+            this.redis.opsForHash().putAll(this.lookupReportKey.get(), entries);
+        }
+        catch (RuntimeException ex) {
+            log.error("Error recording session cleanup report.", ex);
+        }
+    }
+
+    private void release(String leaseKey) {
+        try {
+            this.redis.execute(RELEASE, Collections.singletonList(leaseKey), this.nodeId);
+        }
+        catch (RuntimeException ex) {
+            log.error("Error releasing session cleanup lease " + leaseKey + ".", ex);
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package ppl.server.base.session;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * The outcome of the last expired session cleanup run in the cluster.
+ */
+public final class SessionCleanupReport {
+
+    private final String node;
+
+    private final Instant startTime;
+
+    private final Duration duration;
+
+    private final boolean succeeded;
+
+    SessionCleanupReport(String node, Instant startTime, Duration duration, boolean succeeded) {
+        this.node = node;
+        this.startTime = startTime;
+        this.duration = duration;
+        this.succeeded = succeeded;
+    }
+
+    /**
+     * @return the id of the node that ran the cleanup
+     */
+    public String getNode() {
+        return this.node;
+    }
+
+    public Instant getStartTime() {
+        return this.startTime;
+    }
+
+    public Duration getDuration() {
+        return this.duration;
+    }
+
+    public boolean isSucceeded() {
+        return this.succeeded;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionCleanupReport{node='" + this.node + "', startTime=" + this.startTime + ", duration="
+                + this.duration + ", succeeded=" + this.succeeded + "}";
+    }
+
+}
@@ -0,0 +1,37 @@
+package ppl.server.base.session;
+
+/**
+ * What {@link CustomSIDRedisIndexedSessionRepository} publishes to the session created
+ * channel on the first save of a new session.
+ */
+public enum SessionCreatedEventMode {
+
+    /**
+     * Publishes the serialized delta of the session.
+     */
+    FULL,
+
+    /**
+     * Publishes the creation time, the last accessed time and the max inactive interval
+     * only. The session of the {@link org.springframework.session.events.SessionCreatedEvent}
+     * loads its attributes from Redis the first time one is asked for.
+     */
+    LIGHTWEIGHT,
+
+    /**
+     * Publishes nothing, no {@link org.springframework.session.events.SessionCreatedEvent}
+     * is fired.
+     */
+    NONE,
+
+    /**
+     * {@link #FULL} if the application has a
+     * {@link org.springframework.session.events.SessionCreatedEvent} listener, otherwise
+     * {@link #NONE}. Resolved once at startup by the configuration, only the listeners of
+     * the local node are looked at, so all nodes must agree on whether they listen.
+     * Listeners of any event, such as smart listeners that relay events, do not count; an
+     * application receiving the event only through one of them must choose {@link #FULL}.
+     */
+    AUTO
+
+}
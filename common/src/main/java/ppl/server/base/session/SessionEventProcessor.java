@@ -0,0 +1,217 @@
+package ppl.server.base.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Processes session destroyed events off the Redis listener thread. Events are spread
+ * over a fixed number of workers by session id, so the events of one session are always
+ * handled in the order they were received. Each worker hands the events it finds queued
+ * to the handler in batches, which lets the handler load all their sessions in one
+ * pipelined round trip.
+ * </p>
+ * <p>
+ * The queues are bounded. When a worker falls behind,
+ * {@link #submit(String, boolean, boolean)} blocks the listener thread, which in turn
+ * stops reading from the Redis subscription instead of buffering the burst in memory.
+ * </p>
+ */
+final class SessionEventProcessor {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionEventProcessor.class);
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final List<BlockingQueue<Event>> queues;
+
+    private final List<Thread> workers;
+
+    private final int batchSize;
+
+    private final Consumer<List<Event>> handler;
+
+    private final LongAdder processedCount = new LongAdder();
+
+    private volatile long lastLagInMillis;
+
+    private volatile boolean running = true;
+
+    SessionEventProcessor(int threads, int capacity, int batchSize, Consumer<List<Event>> handler) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        if (capacity < threads) {
+            throw new IllegalArgumentException("capacity must not be less than threads");
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+        this.handler = handler;
+        this.queues = new ArrayList<>(threads);
+        this.workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            BlockingQueue<Event> queue = new ArrayBlockingQueue<>(capacity / threads);
+            Thread worker = new Thread(() -> work(queue), "session-event-" + i);
+            worker.setDaemon(true);
+            this.queues.add(queue);
+            this.workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a destroyed event, blocking while the queue of its worker is full.
+     * @param sessionId the id of the destroyed session
+     * @param deleted {@code true} if the session was deleted, {@code false} if it expired
+     * @param legacy whether the event is for an untagged expires key
+     */
+    void submit(String sessionId, boolean deleted, boolean legacy) {
+        if (!this.running) {
+            log.warn("Dropping destroyed event of session " + sessionId + ", the processor is shut down");
+            return;
+        }
+        Event event = new Event(sessionId, deleted, legacy);
+        BlockingQueue<Event> queue = this.queues.get(Math.floorMod(sessionId.hashCode(), this.queues.size()));
+        try {
+            queue.put(event);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while queueing destroyed event of session " + sessionId);
+        }
+    }
+
+    /**
+     * @return the number of events waiting to be processed
+     */
+    int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<Event> queue : this.queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return how long the oldest waiting event has been queued, in milliseconds
+     */
+    long getQueueLagInMillis() {
+        long now = System.nanoTime();
+        long lag = 0;
+        for (BlockingQueue<Event> queue : this.queues) {
+            Event head = queue.peek();
+            if (head != null) {
+                lag = Math.max(lag, now - head.receivedAt);
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(lag);
+    }
+
+    /**
+     * @return how long the last processed event waited in the queue, in milliseconds
+     */
+    long getLastLagInMillis() {
+        return this.lastLagInMillis;
+    }
+
+    long getProcessedCount() {
+        return this.processedCount.sum();
+    }
+
+    /**
+     * Stops accepting events and waits for the queued ones to be processed. Workers still
+     * busy once the shutdown timeout has passed are interrupted, and the events left in
+     * their queues are dropped.
+     */
+    void shutdown() {
+        this.running = false;
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+        try {
+            for (Thread worker : this.workers) {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            for (Thread worker : this.workers) {
+                if (worker.isAlive()) {
+                    worker.interrupt();
+                    worker.join(POLL_INTERVAL_MILLIS);
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        int remaining = getQueueDepth();
+        if (remaining > 0) {
+            log.warn("Dropped " + remaining + " destroyed events on shutdown");
+        }
+    }
+
+    private void work(BlockingQueue<Event> queue) {
+        List<Event> batch = new ArrayList<>(this.batchSize);
+        while (true) {
+            Event first;
+            try {
+                // polls rather than blocks, so shutdown need not interrupt a worker that
+                // may be in a Redis call
+                first = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ex) {
+                // interrupted only once the shutdown timeout has passed
+                return;
+            }
+            if (first == null) {
+                if (!this.running && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, this.batchSize - 1);
+            process(batch);
+            batch.clear();
+        }
+    }
+
+    private void process(List<Event> batch) {
+        this.lastLagInMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batch.get(0).receivedAt);
+        try {
+            this.handler.accept(batch);
+        }
+        catch (RuntimeException ex) {
+            log.error("Error processing " + batch.size() + " destroyed events.", ex);
+        }
+        this.processedCount.add(batch.size());
+    }
+
+    static final class Event {
+
+        final String sessionId;
+
+        final boolean deleted;
+
+        final boolean legacy;
+
+        final long receivedAt = System.nanoTime();
+
+        Event(String sessionId, boolean deleted, boolean legacy) {
+            this.sessionId = sessionId;
+            this.deleted = deleted;
+            this.legacy = legacy;
+        }
+
+    }
+
+}
@@ -0,0 +1,22 @@
+package ppl.server.base.session;
+
+import org.springframework.session.Session;
+
+/**
+ * Tracks when sessions expire so that {@link CustomSIDRedisIndexedSessionRepository} can
+ * publish a {@link org.springframework.session.events.SessionExpiredEvent} for them in a
+ * deterministic fashion.
+ */
+interface SessionExpirationPolicy {
+
+    void onDelete(Session session);
+
+    void onExpirationUpdated(Long originalExpirationTimeInMilli, Session session);
+
+    void onSessionIdChanged(String originalSessionId, Session session);
+
+    void cleanExpiredSessions();
+
+    void setCleanupBatchSize(int cleanupBatchSize);
+
+}
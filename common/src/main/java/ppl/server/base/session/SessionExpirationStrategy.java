@@ -0,0 +1,25 @@
+package ppl.server.base.session;
+
+/**
+ * How {@link CustomSIDRedisIndexedSessionRepository} tracks session expiration.
+ */
+public enum SessionExpirationStrategy {
+
+    /**
+     * Sessions are tracked in one set per minute and destroyed events are fired from
+     * Redis keyspace notifications, which must be enabled with
+     * {@code notify-keyspace-events}.
+     */
+    MINUTE_BUCKETS,
+
+    /**
+     * Sessions are tracked in one sorted set scored by their exact expiration time. The
+     * cleanup task reaps them in batches and fires
+     * {@link org.springframework.session.events.SessionExpiredEvent} itself, and deletes
+     * fire {@link org.springframework.session.events.SessionDeletedEvent} directly, so
+     * keyspace notifications are not needed. The precision is bounded by how often the
+     * cleanup cron runs.
+     */
+    SORTED_SET
+
+}
@@ -0,0 +1,299 @@
+package ppl.server.base.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import ppl.common.utils.string.Strings;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * <p>
+ * Copies all the keys of a session namespace, sessions, expiration keys and indexes
+ * alike, from one Redis deployment to another or into another namespace. The export
+ * walks the namespace with SCAN and writes every key with DUMP and its remaining time to
+ * live to a stream, a batch of keys per pipelined round trip, so memory use does not
+ * grow with the number of sessions. The import writes the keys back with pipelined
+ * RESTOREs under the target namespace.
+ * </p>
+ * <p>
+ * The stream starts with a magic number, the format version and the export time, and
+ * each key is stored as its name relative to the namespace, its time to live in
+ * milliseconds plus one, {@code 0} for keys that do not expire, and its DUMP value, the
+ * lengths written as variable length integers. A zero length name ends the stream.
+ * Times to live are shortened on import by the time elapsed since the export, keys
+ * that expired meanwhile are skipped. DUMP values can only be restored on a Redis
+ * version at least as recent as the exporting one. SCAN does not run on Redis Cluster.
+ * </p>
+ */
+public class SessionMigrator {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionMigrator.class);
+
+    static final byte[] MAGIC = {'S', 'E', 'S', 'X'};
+
+    static final byte VERSION = 1;
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final RedisOperations<?, ?> redisOperations;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private int maxKeysPerSecond;
+
+    private LongConsumer progressListener = (count) -> {
+    };
+
+    public SessionMigrator(RedisOperations<?, ?> redisOperations) {
+        this.redisOperations = Objects.requireNonNull(redisOperations, "redisOperations cannot be null");
+    }
+
+    /**
+     * Sets the number of keys read or written per pipelined round trip. Default is
+     * {@link #DEFAULT_BATCH_SIZE}.
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the maximum number of keys exported or imported per second. Default is
+     * {@code 0}, no limit.
+     * @param maxKeysPerSecond the maximum number of keys per second
+     */
+    public void setMaxKeysPerSecond(int maxKeysPerSecond) {
+        if (maxKeysPerSecond < 0) {
+            throw new IllegalArgumentException("maxKeysPerSecond must not be negative");
+        }
+        this.maxKeysPerSecond = maxKeysPerSecond;
+    }
+
+    /**
+     * Sets a listener called after each batch with the number of keys exported or
+     * imported so far.
+     * @param progressListener the progress listener
+     */
+    public void setProgressListener(LongConsumer progressListener) {
+        this.progressListener = Objects.requireNonNull(progressListener, "progressListener cannot be null");
+    }
+
+    /**
+     * Exports all the keys of a namespace.
+     * @param namespace the namespace, as given to
+     * {@link CustomSIDRedisIndexedSessionRepository#setRedisKeyNamespace(String)}
+     * @param out the stream to write to, not closed
+     * @return the number of keys exported
+     * @throws IOException if the stream cannot be written
+     */
+    public long exportNamespace(String namespace, OutputStream out) throws IOException {
+        byte[] prefix = toPrefix(namespace);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        data.writeLong(System.currentTimeMillis());
+        ScanOptions options = ScanOptions.scanOptions()
+                .match(new String(prefix, StandardCharsets.UTF_8) + "*")
+                .count(this.batchSize)
+                .build();
+        long[] count = {0};
+        Throttle throttle = new Throttle();
+        try {
+            this.redisOperations.execute((RedisCallback<Object>) (connection) -> {
+                try (Cursor<byte[]> cursor = connection.scan(options)) {
+                    List<byte[]> batch = new ArrayList<>(this.batchSize);
+                    while (cursor.hasNext()) {
+                        batch.add(cursor.next());
+                        if (batch.size() == this.batchSize || !cursor.hasNext()) {
+                            count[0] += exportBatch(batch, prefix.length, data);
+                            batch.clear();
+                            this.progressListener.accept(count[0]);
+                            throttle.acquire(count[0]);
+                        }
+                    }
+                }
+                catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return null;
+            });
+        }
+        catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        writeVarLong(data, 0);
+        data.flush();
+        log.info("Exported " + count[0] + " keys of namespace " + namespace);
+        return count[0];
+    }
+
+    private int exportBatch(List<byte[]> keys, int prefixLength, DataOutputStream data) throws IOException {
+        List<Object> results = this.redisOperations.executePipelined((RedisCallback<Object>) (connection) -> {
+            for (byte[] key : keys) {
+                connection.dump(key);
+                connection.pTtl(key);
+            }
+            return null;
+        }, null);
+        int exported = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] value = (byte[]) results.get(2 * i);
+            Long ttl = (Long) results.get(2 * i + 1);
+            if (value == null || ttl == null || ttl == -2) {
+                // the key expired or was deleted since it was scanned
+                continue;
+            }
+            byte[] key = keys.get(i);
+            writeVarLong(data, key.length - prefixLength);
+            data.write(key, prefixLength, key.length - prefixLength);
+            writeVarLong(data, (ttl < 0) ? 0 : ttl + 1);
+            writeVarLong(data, value.length);
+            data.write(value);
+            exported++;
+        }
+        return exported;
+    }
+
+    /**
+     * Imports keys exported by {@link #exportNamespace(String, OutputStream)} into a
+     * namespace, replacing keys that already exist.
+     * @param namespace the namespace to import into, which may differ from the exported
+     * one
+     * @param in the stream to read from, not closed
+     * @return the number of keys imported
+     * @throws IOException if the stream cannot be read or is not an export
+     */
+    public long importNamespace(String namespace, InputStream in) throws IOException {
+        byte[] prefix = toPrefix(namespace);
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a session export.");
+        }
+        byte version = data.readByte();
+        if (version > VERSION) {
+            throw new IOException("Unsupported session export version " + version + ".");
+        }
+        long elapsed = Math.max(0, System.currentTimeMillis() - data.readLong());
+        long count = 0;
+        long skipped = 0;
+        Throttle throttle = new Throttle();
+        List<byte[]> keys = new ArrayList<>(this.batchSize);
+        List<byte[]> values = new ArrayList<>(this.batchSize);
+        List<Long> ttls = new ArrayList<>(this.batchSize);
+        while (true) {
+            int keyLength = (int) readVarLong(data);
+            if (keyLength > 0) {
+                byte[] key = Arrays.copyOf(prefix, prefix.length + keyLength);
+                data.readFully(key, prefix.length, keyLength);
+                long ttl = readVarLong(data) - 1;
+                byte[] value = new byte[(int) readVarLong(data)];
+                data.readFully(value);
+                if (ttl >= 0) {
+                    ttl -= elapsed;
+                    if (ttl <= 0) {
+                        skipped++;
+                        continue;
+                    }
+                }
+                keys.add(key);
+                values.add(value);
+                ttls.add(Math.max(ttl, 0));
+            }
+            if (keys.size() == this.batchSize || (keyLength == 0 && !keys.isEmpty())) {
+                importBatch(keys, values, ttls);
+                count += keys.size();
+                keys.clear();
+                values.clear();
+                ttls.clear();
+                this.progressListener.accept(count);
+                throttle.acquire(count);
+            }
+            if (keyLength == 0) {
+                break;
+            }
+        }
+        log.info("Imported " + count + " keys into namespace " + namespace + ", skipped " + skipped
+                + " keys that expired since the export");
+        return count;
+    }
+
+    private void importBatch(List<byte[]> keys, List<byte[]> values, List<Long> ttls) {
+        this.redisOperations.executePipelined((RedisCallback<Object>) (connection) -> {
+            for (int i = 0; i < keys.size(); i++) {
+                connection.restore(keys.get(i), ttls.get(i), values.get(i), true);
+            }
+            return null;
+        }, null);
+    }
+
+    private static byte[] toPrefix(String namespace) {
+        if (Strings.isBlank(namespace)) {
+            throw new IllegalArgumentException("namespace must not be empty");
+        }
+        return (namespace.trim() + ":").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed session export.");
+    }
+
+    /**
+     * Sleeps as long as the keys handled so far are ahead of the rate limit.
+     */
+    private final class Throttle {
+
+        private final long start = System.nanoTime();
+
+        void acquire(long count) {
+            if (SessionMigrator.this.maxKeysPerSecond <= 0) {
+                return;
+            }
+            long due = start + TimeUnit.SECONDS.toNanos(count) / SessionMigrator.this.maxKeysPerSecond;
+            long wait = due - System.nanoTime();
+            if (wait <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while throttled", ex);
+            }
+        }
+
+    }
+
+}
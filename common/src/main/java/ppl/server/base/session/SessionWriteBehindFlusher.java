@@ -0,0 +1,275 @@
+package ppl.server.base.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Writes session saves to Redis off the request thread. A save is kept as a pending
+ * snapshot of the session by id, and a later save of the same session is merged into the
+ * pending one, so a session saved by several requests in a row is written once. A single
+ * thread writes the pending snapshots in batches every flush interval, or as soon as a
+ * batch is full.
+ * </p>
+ * <p>
+ * Snapshots stay visible through {@link #get(String)} until they are written, which lets
+ * the repository serve its own writes on this node. {@link #flush(String)} writes the
+ * snapshot of one session right away, for the operations that must not overtake it.
+ * </p>
+ * @param <S> the type of the session snapshots
+ */
+final class SessionWriteBehindFlusher<S> {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionWriteBehindFlusher.class);
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final Map<String, S> pending = new ConcurrentHashMap<>();
+
+    private final Map<String, S> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Held while snapshots are written, so that at most one write of a session is in
+     * flight and {@link #flush(String)} never overtakes the flusher thread.
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final Object signal = new Object();
+
+    private final long flushIntervalInMillis;
+
+    private final int batchSize;
+
+    private final int maxPending;
+
+    private final BinaryOperator<S> merger;
+
+    private final Consumer<List<S>> writer;
+
+    private final Thread flusher;
+
+    private final LongAdder writtenCount = new LongAdder();
+
+    private final LongAdder mergedCount = new LongAdder();
+
+    private final LongAdder failedCount = new LongAdder();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param flushInterval the longest a snapshot waits before it is written
+     * @param batchSize the number of snapshots written in one batch
+     * @param maxPending the number of pending snapshots from which saves are written by
+     * the calling thread
+     * @param merger merges a later snapshot into the pending one of the same session
+     * @param writer writes a batch of snapshots
+     */
+    SessionWriteBehindFlusher(Duration flushInterval, int batchSize, int maxPending, BinaryOperator<S> merger,
+                              Consumer<List<S>> writer) {
+        if (flushInterval.isNegative() || flushInterval.isZero()) {
+            throw new IllegalArgumentException("flushInterval must be positive");
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        if (maxPending < batchSize) {
+            throw new IllegalArgumentException("maxPending must not be less than batchSize");
+        }
+        this.flushIntervalInMillis = flushInterval.toMillis();
+        this.batchSize = batchSize;
+        this.maxPending = maxPending;
+        this.merger = merger;
+        this.writer = writer;
+        this.flusher = new Thread(this::work, "session-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Queues a snapshot, merging it into the pending one of the same session. Once the
+     * flusher is shut down or too far behind, the snapshot is written by the calling
+     * thread instead.
+     * @param sessionId the id of the session
+     * @param snapshot the snapshot to write
+     */
+    void submit(String sessionId, S snapshot) {
+        if (!this.running || this.pending.size() >= this.maxPending) {
+            flush(sessionId, snapshot);
+            return;
+        }
+        this.pending.merge(sessionId, snapshot, (earlier, later) -> {
+            this.mergedCount.increment();
+            return this.merger.apply(earlier, later);
+        });
+        if (this.pending.size() >= this.batchSize) {
+            synchronized (this.signal) {
+                this.signal.notify();
+            }
+        }
+    }
+
+    /**
+     * Returns the snapshot of a session that is not written yet, if there is one.
+     * @param sessionId the id of the session
+     * @return the snapshot or {@code null}
+     */
+    S get(String sessionId) {
+        S snapshot = this.pending.get(sessionId);
+        return (snapshot != null) ? snapshot : this.inFlight.get(sessionId);
+    }
+
+    /**
+     * Writes the pending snapshot of a session, if there is one, and waits for a write of
+     * it in flight to finish.
+     * @param sessionId the id of the session
+     */
+    void flush(String sessionId) {
+        flush(sessionId, null);
+    }
+
+    private void flush(String sessionId, S snapshot) {
+        this.flushLock.lock();
+        try {
+            snapshot = takePending(sessionId, snapshot);
+            if (snapshot != null) {
+                write(Collections.singletonList(snapshot));
+            }
+        }
+        finally {
+            this.inFlight.remove(sessionId);
+            this.flushLock.unlock();
+        }
+    }
+
+    int getPendingCount() {
+        return this.pending.size();
+    }
+
+    long getWrittenCount() {
+        return this.writtenCount.sum();
+    }
+
+    /**
+     * @return the number of saves merged into an earlier one instead of written
+     */
+    long getMergedCount() {
+        return this.mergedCount.sum();
+    }
+
+    long getFailedCount() {
+        return this.failedCount.sum();
+    }
+
+    /**
+     * Stops the flusher thread and writes the pending snapshots. Saves submitted from
+     * then on are written by the calling thread.
+     */
+    void shutdown() {
+        this.running = false;
+        synchronized (this.signal) {
+            this.signal.notify();
+        }
+        try {
+            this.flusher.join(SHUTDOWN_TIMEOUT_MILLIS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        int remaining = this.pending.size();
+        if (remaining > 0) {
+            log.warn("Dropped " + remaining + " pending session writes on shutdown");
+        }
+    }
+
+    private void work() {
+        while (this.running) {
+            if (this.pending.size() < this.batchSize) {
+                synchronized (this.signal) {
+                    try {
+                        this.signal.wait(this.flushIntervalInMillis);
+                    }
+                    catch (InterruptedException ex) {
+                        continue;
+                    }
+                }
+            }
+            drain();
+        }
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+        while (!this.pending.isEmpty() && System.currentTimeMillis() < deadline) {
+            drain();
+        }
+    }
+
+    /**
+     * Writes all the snapshots pending when called, a batch at a time.
+     */
+    private void drain() {
+        List<String> sessionIds = new ArrayList<>(this.pending.keySet());
+        for (int from = 0; from < sessionIds.size(); from += this.batchSize) {
+            this.flushLock.lock();
+            try {
+                List<S> batch = new ArrayList<>(this.batchSize);
+                for (String sessionId : sessionIds.subList(from, Math.min(from + this.batchSize, sessionIds.size()))) {
+                    S snapshot = takePending(sessionId, null);
+                    if (snapshot != null) {
+                        batch.add(snapshot);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+            }
+            finally {
+                this.inFlight.clear();
+                this.flushLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Moves the pending snapshot of a session, merged with the given one, to the snapshots
+     * in flight. The move is done in one atomic step of the pending map, so a save merged
+     * meanwhile waits for it and the snapshots are merged once. The snapshot is put in
+     * flight before it leaves the pending ones, so {@link #get(String)} finds it at any
+     * time.
+     * @return the snapshot to write, or {@code null} if there is none
+     */
+    private S takePending(String sessionId, S snapshot) {
+        List<S> taken = new ArrayList<>(1);
+        this.pending.computeIfPresent(sessionId, (id, pendingSnapshot) -> {
+            S merged = (snapshot == null) ? pendingSnapshot : this.merger.apply(pendingSnapshot, snapshot);
+            this.inFlight.put(id, merged);
+            taken.add(merged);
+            return null;
+        });
+        if (!taken.isEmpty()) {
+            return taken.get(0);
+        }
+        if (snapshot != null) {
+            this.inFlight.put(sessionId, snapshot);
+        }
+        return snapshot;
+    }
+
+    private void write(List<S> batch) {
+        try {
+            this.writer.accept(batch);
+            this.writtenCount.add(batch.size());
+        }
+        catch (RuntimeException ex) {
+            this.failedCount.add(batch.size());
+            log.error("Error writing " + batch.size() + " sessions.", ex);
+        }
+    }
+
+}
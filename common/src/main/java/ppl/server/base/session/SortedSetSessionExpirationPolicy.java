@@ -0,0 +1,151 @@
+package ppl.server.base.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.session.Session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Tracks session expiration in a single sorted set of session id to expiration time in
+ * milliseconds. {@link #cleanExpiredSessions()} reaps the due members in batches with
+ * ZRANGEBYSCORE and ZREM and hands every session it removed to the expired session
+ * handler, which publishes the event. Because a member can only be removed once, each
+ * session is reaped by exactly one node even when the cleanup runs everywhere.
+ * </p>
+ * <p>
+ * No expires key is written and no keyspace notification is needed.
+ * </p>
+ */
+final class SortedSetSessionExpirationPolicy implements SessionExpirationPolicy {
+
+    private static final Logger log = LoggerFactory.getLogger(SortedSetSessionExpirationPolicy.class);
+
+    private final RedisOperations<Object, Object> redis;
+
+    private final Supplier<String> lookupExpirationsKey;
+
+    private final Function<String, String> lookupSessionKey;
+
+    private final Consumer<String> expiredSessionHandler;
+
+    private int cleanupBatchSize = RedisSessionExpirationPolicy.DEFAULT_CLEANUP_BATCH_SIZE;
+
+    SortedSetSessionExpirationPolicy(RedisOperations<Object, Object> sessionRedisOperations,
+                                     Supplier<String> lookupExpirationsKey, Function<String, String> lookupSessionKey,
+                                     Consumer<String> expiredSessionHandler) {
+        this.redis = sessionRedisOperations;
+        this.lookupExpirationsKey = lookupExpirationsKey;
+        this.lookupSessionKey = lookupSessionKey;
+        this.expiredSessionHandler = expiredSessionHandler;
+    }
+
+    @Override
+    public void setCleanupBatchSize(int cleanupBatchSize) {
+        if (cleanupBatchSize <= 0) {
+            throw new IllegalArgumentException("cleanupBatchSize must be positive");
+        }
+        this.cleanupBatchSize = cleanupBatchSize;
+    }
+
+    @Override
+    public void onDelete(Session session) {
+        this.redis.opsForZSet().remove(this.lookupExpirationsKey.get(), session.getId());
+    }
+
+    @Override
+    public void onExpirationUpdated(Long originalExpirationTimeInMilli, Session session) {
+        String sessionKey = this.lookupSessionKey.apply(session.getId());
+        long sessionExpireInSeconds = session.getMaxInactiveInterval().getSeconds();
+        if (sessionExpireInSeconds <= 0) {
+            this.redis.opsForZSet().remove(this.lookupExpirationsKey.get(), session.getId());
+            if (sessionExpireInSeconds < 0) {
+                this.redis.boundHashOps(sessionKey).persist();
+                return;
+            }
+        }
+        else {
+            this.redis.opsForZSet().add(this.lookupExpirationsKey.get(), session.getId(),
+                    RedisSessionExpirationPolicy.expiresInMillis(session));
+        }
+        long fiveMinutesAfterExpires = sessionExpireInSeconds + TimeUnit.MINUTES.toSeconds(5);
+        this.redis.boundHashOps(sessionKey).expire(fiveMinutesAfterExpires, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void onSessionIdChanged(String originalSessionId, Session session) {
+        this.redis.opsForZSet().remove(this.lookupExpirationsKey.get(), originalSessionId);
+        if (session.getMaxInactiveInterval().getSeconds() > 0) {
+            this.redis.opsForZSet().add(this.lookupExpirationsKey.get(), session.getId(),
+                    RedisSessionExpirationPolicy.expiresInMillis(session));
+        }
+    }
+
+    @Override
+    public void cleanExpiredSessions() {
+        String expirationsKey = this.lookupExpirationsKey.get();
+        long now = System.currentTimeMillis();
+        int reaped = 0;
+        List<String> due;
+        do {
+            Set<Object> members = this.redis.opsForZSet().rangeByScore(expirationsKey, 0, now, 0,
+                    this.cleanupBatchSize);
+            due = new ArrayList<>((members != null) ? members.size() : 0);
+            if (members != null) {
+                for (Object member : members) {
+                    due.add((String) member);
+                }
+            }
+            for (String sessionId : claim(expirationsKey, due)) {
+                try {
+                    this.expiredSessionHandler.accept(sessionId);
+                }
+                catch (RuntimeException ex) {
+                    log.error("Error handling expired session " + sessionId + ".", ex);
+                }
+                reaped++;
+            }
+        } while (due.size() >= this.cleanupBatchSize);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Reaped " + reaped + " sessions expiring before " + now);
+        }
+    }
+
+    /**
+     * Removes the given members with pipelined ZREMs and returns the ones this call
+     * actually removed.
+     */
+    private List<String> claim(String expirationsKey, List<String> sessionIds) {
+        if (sessionIds.isEmpty()) {
+            return sessionIds;
+        }
+        List<Object> removed = this.redis.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                for (String sessionId : sessionIds) {
+                    SortedSetSessionExpirationPolicy.this.redis.opsForZSet().remove(expirationsKey, sessionId);
+                }
+                return null;
+            }
+        });
+        List<String> claimed = new ArrayList<>(sessionIds.size());
+        for (int i = 0; i < sessionIds.size(); i++) {
+            Object result = (i < removed.size()) ? removed.get(i) : null;
+            if (result instanceof Number && ((Number) result).longValue() > 0) {
+                claimed.add(sessionIds.get(i));
+            }
+        }
+        return claimed;
+    }
+
+}
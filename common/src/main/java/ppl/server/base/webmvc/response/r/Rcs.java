@@ -5,6 +5,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.web.bind.MissingRequestValueException;
 import ppl.common.utils.ArrayUtils;
+import ppl.server.base.ratelimit.RateLimitExceededException;
 
 import javax.validation.ConstraintViolationException;
 import java.util.*;
@@ -24,6 +25,8 @@ public class Rcs {
     private static final ResponseCode DATA_ERR = registerDefault(1001, false, "数据访问异常。");
     private static final ResponseCode RESOURCE_NOT_FOUND = registerDefault(1002, false, "资源未找到。");
     private static final ResponseCode METHOD_NOT_ALLOWED = registerDefault(1003, false, "方法不被允许。");
+    private static final ResponseCode TOO_MANY_REQUESTS = registerDefault(1004, false, "请求过于频繁，请{}毫秒后重试。",
+            RateLimitExceededException.class);
 
     private static final ResponseCode NO_PERMISSION_ERROR = typeSafeCall(() ->
             registerDefault(10000, false, "无权限。", AccessDeniedException.class));
@@ -0,0 +1,146 @@
+package ppl.server.base.session;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.session.FindByIndexNameSessionRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Saves of sessions whose principal is a detached attribute, against a connection that
+ * holds one stored session and answers null to every command sent in a pipeline.
+ */
+class CustomSIDRedisIndexedSessionRepositoryDetachedAttributeTests {
+
+    private static final String SESSION_ID = "session-id";
+
+    private static final String PRINCIPAL = FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME;
+
+    private final JdkSerializationRedisSerializer valueSerializer = new JdkSerializationRedisSerializer();
+
+    private final StoredSession redis = new StoredSession();
+
+    private CustomSIDRedisIndexedSessionRepository repository;
+
+    private Instant lastAccessedTime;
+
+    @BeforeEach
+    void setUp() {
+        RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(this.redis.connection);
+        RedisTemplate<Object, Object> redisTemplate = new RedisTemplate<>();
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.afterPropertiesSet();
+        this.repository = new CustomSIDRedisIndexedSessionRepository(redisTemplate);
+        this.repository.setSessionCreatedEventMode(SessionCreatedEventMode.NONE);
+        this.repository.setSortedPrincipalIndex(true);
+        this.repository.setDetachedAttributes(Collections.singletonList(PRINCIPAL));
+
+        this.lastAccessedTime = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        Map<byte[], byte[]> hash = new HashMap<>();
+        hash.put(toBytes(RedisSessionMapper.CREATION_TIME_KEY), this.valueSerializer.serialize(this.lastAccessedTime.toEpochMilli()));
+        hash.put(toBytes(RedisSessionMapper.LAST_ACCESSED_TIME_KEY), this.valueSerializer.serialize(this.lastAccessedTime.toEpochMilli()));
+        hash.put(toBytes(RedisSessionMapper.MAX_INACTIVE_INTERVAL_KEY), this.valueSerializer.serialize(1800));
+        hash.put(toBytes(RedisSessionMapper.DETACHED_ATTRIBUTE_PREFIX + PRINCIPAL), this.valueSerializer.serialize(Boolean.TRUE));
+        this.redis.hash = hash;
+        this.redis.sessionKey = toBytes(this.repository.getSessionKey(SESSION_ID));
+        this.redis.detachedKey = toBytes(this.repository.getDetachedAttributeKey(SESSION_ID, PRINCIPAL));
+        this.redis.detachedValue = this.valueSerializer.serialize("user");
+    }
+
+    @Test
+    void touchOnlySaveKeepsDetachedPrincipalAndTouchesSortedIndex() {
+        CustomSIDRedisIndexedSessionRepository.RedisSession session = this.repository.findById(SESSION_ID);
+        Instant touched = this.lastAccessedTime.plusSeconds(120);
+        session.setLastAccessedTime(touched);
+
+        this.repository.save(session);
+
+        verify(this.redis.connection).zAdd(aryEq(toBytes(this.repository.getSortedPrincipalKey("user"))),
+                eq((double) touched.toEpochMilli()), aryEq(toBytes(SESSION_ID)));
+        assertEquals("user", session.getAttribute(PRINCIPAL));
+    }
+
+    private static byte[] toBytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Answers HGETALL of the session key and GET of its detached attribute, and null to
+     * everything sent in a pipeline, the way a pipelined connection does.
+     */
+    private static final class StoredSession implements Answer<Object> {
+
+        final RedisConnection connection = mock(RedisConnection.class, this);
+
+        Map<byte[], byte[]> hash;
+
+        byte[] sessionKey;
+
+        byte[] detachedKey;
+
+        byte[] detachedValue;
+
+        private boolean pipelined;
+
+        private int queued;
+
+        @Override
+        public Object answer(InvocationOnMock invocation) throws Throwable {
+            if (invocation.getMethod().getDeclaringClass() == Object.class) {
+                return RETURNS_DEFAULTS.answer(invocation);
+            }
+            switch (invocation.getMethod().getName()) {
+                case "openPipeline":
+                    this.pipelined = true;
+                    this.queued = 0;
+                    return null;
+                case "closePipeline":
+                    this.pipelined = false;
+                    return new ArrayList<>(Collections.nCopies(this.queued, null));
+                case "isPipelined":
+                    return this.pipelined;
+                case "isQueueing":
+                case "isClosed":
+                case "close":
+                case "getNativeConnection":
+                    return RETURNS_DEFAULTS.answer(invocation);
+                default:
+            }
+            if (this.pipelined) {
+                this.queued++;
+                return null;
+            }
+            Object[] arguments = invocation.getArguments();
+            if ("hGetAll".equals(invocation.getMethod().getName()) && Arrays.equals(this.sessionKey, (byte[]) arguments[0])) {
+                return new HashMap<>(this.hash);
+            }
+            if ("get".equals(invocation.getMethod().getName()) && Arrays.equals(this.detachedKey, (byte[]) arguments[0])) {
+                return this.detachedValue;
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        }
+
+    }
+
+}
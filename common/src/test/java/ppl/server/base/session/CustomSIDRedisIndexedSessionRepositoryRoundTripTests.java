@@ -0,0 +1,139 @@
+package ppl.server.base.session;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.session.FindByIndexNameSessionRepository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Counts the round trips to Redis of {@link CustomSIDRedisIndexedSessionRepository#save}
+ * against a connection that answers every command with an empty reply.
+ */
+class CustomSIDRedisIndexedSessionRepositoryRoundTripTests {
+
+    private final RoundTripCounter counter = new RoundTripCounter();
+
+    private CustomSIDRedisIndexedSessionRepository repository;
+
+    @BeforeEach
+    void setUp() {
+        RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(this.counter.connection);
+        RedisTemplate<Object, Object> redisTemplate = new RedisTemplate<>();
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.afterPropertiesSet();
+        this.repository = new CustomSIDRedisIndexedSessionRepository(redisTemplate);
+        this.repository.setSessionCreatedEventMode(SessionCreatedEventMode.NONE);
+    }
+
+    @Test
+    void pipelinedSaveOfNewSessionTakesOneRoundTrip() {
+        this.repository.setPipelinedSave(true);
+        CustomSIDRedisIndexedSessionRepository.RedisSession session = this.repository.createSession();
+        session.setAttribute("attribute", "value");
+
+        this.counter.reset();
+        this.repository.save(session);
+
+        assertEquals(1, this.counter.roundTrips);
+        assertTrue(this.counter.commands > 1);
+    }
+
+    @Test
+    void pipelinedSaveOfPrincipalChangeTakesOneRoundTrip() {
+        this.repository.setPipelinedSave(true);
+        CustomSIDRedisIndexedSessionRepository.RedisSession session = this.repository.createSession();
+        this.repository.save(session);
+        session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "user");
+        session.setLastAccessedTime(session.getLastAccessedTime().plusSeconds(120));
+
+        this.counter.reset();
+        this.repository.save(session);
+
+        assertEquals(1, this.counter.roundTrips);
+    }
+
+    @Test
+    void saveWithoutPipelineTakesOneRoundTripPerCommand() {
+        CustomSIDRedisIndexedSessionRepository.RedisSession session = this.repository.createSession();
+        session.setAttribute("attribute", "value");
+
+        this.counter.reset();
+        this.repository.save(session);
+
+        assertTrue(this.counter.roundTrips > 1);
+        assertEquals(this.counter.commands, this.counter.roundTrips);
+    }
+
+    /**
+     * Counts a round trip per command sent outside a pipeline and one per pipeline.
+     */
+    private static final class RoundTripCounter implements Answer<Object> {
+
+        final RedisConnection connection = mock(RedisConnection.class, this);
+
+        int roundTrips;
+
+        int commands;
+
+        private boolean pipelined;
+
+        private int queued;
+
+        void reset() {
+            this.roundTrips = 0;
+            this.commands = 0;
+        }
+
+        @Override
+        public Object answer(InvocationOnMock invocation) throws Throwable {
+            if (invocation.getMethod().getDeclaringClass() == Object.class) {
+                return RETURNS_DEFAULTS.answer(invocation);
+            }
+            switch (invocation.getMethod().getName()) {
+                case "openPipeline":
+                    this.pipelined = true;
+                    this.queued = 0;
+                    return null;
+                case "closePipeline":
+                    this.pipelined = false;
+                    this.roundTrips++;
+                    return new ArrayList<>(Collections.nCopies(this.queued, null));
+                case "isPipelined":
+                    return this.pipelined;
+                case "isQueueing":
+                case "isClosed":
+                case "close":
+                case "getNativeConnection":
+                    return RETURNS_DEFAULTS.answer(invocation);
+                default:
+            }
+            this.commands++;
+            if (this.pipelined) {
+                this.queued++;
+            }
+            else {
+                this.roundTrips++;
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        }
+
+    }
+
+}
@@ -0,0 +1,67 @@
+package ppl.server.base;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ppl.server.base.session.SessionIdGenerator;
+import ppl.server.base.session.TGCSessionIdGenerator;
+import ppl.server.base.session.UuidSessionIdGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the session id generators under contention, the way a
+ * login storm calls {@code createSession} from many request threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(16)
+@Fork(1)
+public class SessionIdGeneratorBenchmark {
+
+    @Param({"uuid", "tgc", "tgc-buffered", "tgc-buffered-url32"})
+    public String generator;
+
+    private SessionIdGenerator sessionIdGenerator;
+
+    @Setup
+    public void setup() {
+        switch (this.generator) {
+            case "uuid":
+                this.sessionIdGenerator = UuidSessionIdGenerator.getInstance();
+                break;
+            case "tgc":
+                this.sessionIdGenerator = new TGCSessionIdGenerator();
+                break;
+            case "tgc-buffered": {
+                TGCSessionIdGenerator tgc = new TGCSessionIdGenerator();
+                tgc.setBuffered(true);
+                this.sessionIdGenerator = tgc;
+                break;
+            }
+            default: {
+                TGCSessionIdGenerator tgc = new TGCSessionIdGenerator();
+                tgc.setBuffered(true);
+                tgc.setRandomLength(32);
+                tgc.setEncoding(TGCSessionIdGenerator.Encoding.BASE64_URL);
+                this.sessionIdGenerator = tgc;
+            }
+        }
+    }
+
+    @Benchmark
+    public String generate() {
+        return this.sessionIdGenerator.generate();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SessionIdGeneratorBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,75 @@
+package ppl.server.base;
+
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import ppl.server.base.session.SessionMigrator;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Exports the sessions of a namespace to a file, or imports them from one, with
+ * {@link SessionMigrator}.
+ * <pre>
+ * export redis://[:password@]host:port[/database] namespace file [maxKeysPerSecond]
+ * import redis://[:password@]host:port[/database] namespace file [maxKeysPerSecond]
+ * </pre>
+ */
+public class SessionMigrationMain {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4 || (!"export".equals(args[0]) && !"import".equals(args[0]))) {
+            System.err.println("Usage: (export|import) redis://[:password@]host:port[/database] namespace file"
+                    + " [maxKeysPerSecond]");
+            System.exit(2);
+        }
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(toConfiguration(URI.create(args[1])));
+        connectionFactory.afterPropertiesSet();
+        try {
+            RedisTemplate<Object, Object> redisTemplate = new RedisTemplate<>();
+            redisTemplate.setConnectionFactory(connectionFactory);
+            redisTemplate.afterPropertiesSet();
+            SessionMigrator migrator = new SessionMigrator(redisTemplate);
+            if (args.length > 4) {
+                migrator.setMaxKeysPerSecond(Integer.parseInt(args[4]));
+            }
+            long start = System.currentTimeMillis();
+            migrator.setProgressListener((count) -> System.out.printf("\r%d keys, %d keys/s", count,
+                    count * 1000 / Math.max(1, System.currentTimeMillis() - start)));
+            long count;
+            if ("export".equals(args[0])) {
+                try (OutputStream out = Files.newOutputStream(Paths.get(args[3]))) {
+                    count = migrator.exportNamespace(args[2], out);
+                }
+            }
+            else {
+                try (InputStream in = Files.newInputStream(Paths.get(args[3]))) {
+                    count = migrator.importNamespace(args[2], in);
+                }
+            }
+            System.out.printf("%n%sed %d keys in %d ms%n", args[0], count, System.currentTimeMillis() - start);
+        }
+        finally {
+            connectionFactory.destroy();
+        }
+    }
+
+    private static RedisStandaloneConfiguration toConfiguration(URI uri) {
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(uri.getHost(),
+                (uri.getPort() < 0) ? 6379 : uri.getPort());
+        String userInfo = uri.getUserInfo();
+        if (userInfo != null) {
+            int separator = userInfo.indexOf(':');
+            configuration.setPassword((separator < 0) ? userInfo : userInfo.substring(separator + 1));
+        }
+        String path = uri.getPath();
+        if (path != null && path.length() > 1) {
+            configuration.setDatabase(Integer.parseInt(path.substring(1)));
+        }
+        return configuration;
+    }
+
+}
@@ -0,0 +1,161 @@
+package ppl.server.base;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import ppl.server.base.session.CompactSessionRedisSerializer;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link JdkSerializationRedisSerializer} with {@link CompactSessionRedisSerializer}
+ * on the values a session hash usually holds: the time fields, a security principal, a
+ * list of granted authorities and a map of user preferences.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionSerializerBenchmark {
+
+    @Param({"jdk", "compact", "compact-registered"})
+    public String serializer;
+
+    private RedisSerializer<Object> redisSerializer;
+
+    private List<Object> values;
+
+    private List<byte[]> serialized;
+
+    @Setup
+    public void setup() {
+        switch (this.serializer) {
+            case "jdk":
+                this.redisSerializer = new JdkSerializationRedisSerializer();
+                break;
+            case "compact":
+                this.redisSerializer = new CompactSessionRedisSerializer();
+                break;
+            default:
+                this.redisSerializer = new CompactSessionRedisSerializer()
+                        .register(1, UserPrincipal.class, new UserPrincipalCodec());
+        }
+        this.values = sessionValues();
+        this.serialized = new ArrayList<>(this.values.size());
+        for (Object value : this.values) {
+            this.serialized.add(this.redisSerializer.serialize(value));
+        }
+    }
+
+    @Benchmark
+    public int serialize(SerializedSize serializedSize) {
+        int size = 0;
+        for (Object value : this.values) {
+            size += this.redisSerializer.serialize(value).length;
+        }
+        serializedSize.bytes = size;
+        return size;
+    }
+
+    @Benchmark
+    public int deserialize() {
+        int hash = 0;
+        for (byte[] bytes : this.serialized) {
+            hash += System.identityHashCode(this.redisSerializer.deserialize(bytes));
+        }
+        return hash;
+    }
+
+    private static List<Object> sessionValues() {
+        long now = System.currentTimeMillis();
+        List<String> authorities = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            authorities.add("ROLE_PERMISSION_" + i);
+        }
+        Map<String, Object> preferences = new HashMap<>();
+        preferences.put("locale", "zh_CN");
+        preferences.put("timezone", "Asia/Shanghai");
+        preferences.put("pageSize", 20);
+        preferences.put("lastLogin", Instant.ofEpochMilli(now - 86400000L));
+        preferences.put("favorites", new ArrayList<>(Arrays.asList(101L, 202L, 303L, 404L)));
+
+        List<Object> values = new ArrayList<>();
+        values.add(now);
+        values.add(now);
+        values.add(1800);
+        values.add(new UserPrincipal(10086L, "someone@example.com", authorities));
+        values.add(preferences);
+        values.add("3f1c0b4e-8d2a-4c55-9f0e-6b7d1e2a9c44");
+        return values;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SessionSerializerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    /**
+     * Reports the serialized size of the session next to the timings.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class SerializedSize {
+
+        public long bytes;
+
+    }
+
+    public static final class UserPrincipal implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long id;
+
+        private final String username;
+
+        private final List<String> authorities;
+
+        public UserPrincipal(long id, String username, List<String> authorities) {
+            this.id = id;
+            this.username = username;
+            this.authorities = authorities;
+        }
+
+    }
+
+    private static final class UserPrincipalCodec implements CompactSessionRedisSerializer.Codec<UserPrincipal> {
+
+        @Override
+        public void write(UserPrincipal value, CompactSessionRedisSerializer.Output out) {
+            out.writeVarLong(value.id);
+            out.writeString(value.username);
+            out.writeVarInt(value.authorities.size());
+            for (String authority : value.authorities) {
+                out.writeString(authority);
+            }
+        }
+
+        @Override
+        public UserPrincipal read(CompactSessionRedisSerializer.Input in) {
+            long id = in.readVarLong();
+            String username = in.readString();
+            int size = in.readVarInt();
+            List<String> authorities = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                authorities.add(in.readString());
+            }
+            return new UserPrincipal(id, username, authorities);
+        }
+
+    }
+
+}